@@ -0,0 +1,292 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.batch;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.utils.MoonwalkerIO;
+import moonwalker.core.utils.MoonwalkerMetadata;
+import moonwalker.core.utils.REV00Metadata;
+import moonwalker.object_editor.io.RomBuffer;
+
+public class BatchEditor
+{
+	public static class Result
+	{
+		private final Path rom, target;
+		private final int editCount, bytesWritten;
+		private final long nanos;
+		private final Exception error;
+		
+		private Result(Path rom, Path target, int editCount, int bytesWritten, long nanos, Exception error)
+		{
+			this.rom = rom;
+			this.target = target;
+			this.editCount = editCount;
+			this.bytesWritten = bytesWritten;
+			this.nanos = nanos;
+			this.error = error;
+		}
+		
+		public Path getRom()
+		{
+			return rom;
+		}
+		public Path getTarget()
+		{
+			return target;
+		}
+		public int getEditCount()
+		{
+			return editCount;
+		}
+		public int getBytesWritten()
+		{
+			return bytesWritten;
+		}
+		public long getNanos()
+		{
+			return nanos;
+		}
+		public Exception getError()
+		{
+			return error;
+		}
+		public boolean isSuccess()
+		{
+			return error == null;
+		}
+		@Override
+		public String toString()
+		{
+			if (error != null)
+				return "FAILED " + rom + ": " + error.getMessage() + " (" + error.getClass().getSimpleName() + ")";
+			return "OK     " + rom + ((target.equals(rom))?"":(" -> " + target)) + ": " + editCount + " edits, "
+					+ bytesWritten + " bytes written, " + String.format("%.1f ms", nanos / 1e6);
+		}
+	}
+	
+	private final EditScript script;
+	private final Path outputDirectory;
+	private final boolean dryRun;
+	
+	public BatchEditor(EditScript script, Path outputDirectory, boolean dryRun)
+	{
+		this.script = script;
+		this.outputDirectory = outputDirectory;
+		this.dryRun = dryRun;
+	}
+	
+	public List<Result> run(List<Path> roms, int threads) throws InterruptedException
+	{
+		//every Rom is independent, the pool never grows beyond the requested thread count
+		int n = Math.max(1, Math.min(threads, roms.size()));
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(n, n, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r ->
+		{
+			Thread t = new Thread(r, "Batch edit");
+			t.setDaemon(true);
+			return t;
+		});
+		try
+		{
+			//two Roms writing the same file would overwrite each other, so none of them is processed
+			HashMap<Path, Integer> targetCount = new HashMap<>();
+			for (Path rom: roms)
+				targetCount.merge(getTarget(rom).toAbsolutePath().normalize(), 1, Integer::sum);
+			
+			ArrayList<Future<Result>> futures = new ArrayList<>(roms.size());
+			for (Path rom: roms)
+			{
+				Path target = getTarget(rom);
+				if (targetCount.get(target.toAbsolutePath().normalize()) > 1)
+					futures.add(CompletableFuture.completedFuture(new Result(rom, target, 0, 0, 0,
+							new IOException("Output file " + target + " is written by more than one Rom"))));
+				else
+					futures.add(executor.submit(() -> process(rom)));
+			}
+			
+			ArrayList<Result> ret = new ArrayList<>(roms.size());
+			for (int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					ret.add(futures.get(i).get());
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					ret.add(new Result(roms.get(i), roms.get(i), 0, 0, 0, (cause instanceof Exception)?(Exception) cause:e));
+				}
+			}
+			return ret;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	public Result process(Path rom)
+	{
+		long start = System.nanoTime();
+		Path target = getTarget(rom);
+		try
+		{
+			//a dry run only reads the Rom, a RomBuffer is only needed to write the changed bytes back
+			RomBuffer romBuffer = dryRun?null:RomBuffer.open(rom);
+			byte[] romContent = dryRun?Files.readAllBytes(rom):romBuffer.toByteArray();
+			MoonwalkerMetadata meta = new REV00Metadata(romContent);
+			MDirectObject[][] oArr = MoonwalkerIO.loadMainObjectArray(romContent, meta);
+			
+			@SuppressWarnings("unchecked")
+			ArrayList<MDirectObject>[] objects = new ArrayList[oArr.length];
+			for (int i = 0; i < objects.length; i++)
+				objects[i] = new ArrayList<MDirectObject>(Arrays.asList(oArr[i]));
+			int edits = script.apply(objects);
+			
+			MDirectObject[][] newArr = new MDirectObject[objects.length][];
+			for (int i = 0; i < objects.length; i++)
+				newArr[i] = objects[i].toArray(new MDirectObject[objects[i].size()]);
+			MoonwalkerIO.saveMainObjectArray(romContent, newArr, meta);
+			MoonwalkerIO.fixChecksum(romContent);
+			
+			int written = 0;
+			if (!dryRun)
+			{
+				//only the changed bytes are rewritten when editing in place
+				romBuffer.commitFrom(romContent);
+				written = romBuffer.writeTo(target);
+			}
+			return new Result(rom, target, edits, written, System.nanoTime() - start, null);
+		}
+		catch (Exception e)
+		{
+			return new Result(rom, target, 0, 0, System.nanoTime() - start, e);
+		}
+	}
+	
+	private Path getTarget(Path rom)
+	{
+		return (outputDirectory == null)?rom:outputDirectory.resolve(rom.getFileName());
+	}
+	
+	private static List<Path> readRomList(String arg) throws IOException
+	{
+		//"@file" names a list of Roms, one per line
+		if (!arg.startsWith("@"))
+			return List.of(Path.of(arg));
+		ArrayList<Path> ret = new ArrayList<>();
+		for (String line: Files.readAllLines(Path.of(arg.substring(1)), StandardCharsets.UTF_8))
+		{
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith(";"))
+				ret.add(Path.of(line));
+		}
+		return ret;
+	}
+	private static void printUsage(PrintStream out)
+	{
+		out.println("Usage: BatchEditor [options] <script> <rom | @romlist>...");
+		out.println("  -o <dir>      write the edited Roms to <dir> instead of editing them in place");
+		out.println("  -j <threads>  number of Roms processed at once (default: number of cores)");
+		out.println("  -n            apply the script without writing anything");
+		out.println();
+		out.println("Script commands (one per line, ';' starts a comment):");
+		out.println("  stage <name>                  select a stage by tab name (\"2-3\") or \"#index\"");
+		out.println("  add <x> <y> <type> [address=<n>] [container=region|initial|all] [data=<hex>]");
+		out.println("  remove <object>");
+		out.println("  move <object> <x> <y>");
+		out.println("  retype <object> <type>");
+		out.println("  readdress <object> <address>");
+		out.println("An object is \"#index\" or \"x,y\" with an optional \":type\".");
+	}
+	
+	public static void main(String[] args)
+	{
+		//the batch mode never touches the gui, nothing may start a display connection
+		System.setProperty("java.awt.headless", "true");
+		
+		Path outputDirectory = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean dryRun = false;
+		int argInd = 0;
+		try
+		{
+			for (; (argInd < args.length) && args[argInd].startsWith("-"); argInd++)
+			{
+				if (args[argInd].equals("-o"))
+					outputDirectory = Path.of(args[++argInd]);
+				else if (args[argInd].equals("-j"))
+					threads = Integer.parseInt(args[++argInd]);
+				else if (args[argInd].equals("-n"))
+					dryRun = true;
+				else
+					throw new IllegalArgumentException("Unknown option " + args[argInd]);
+			}
+			if (args.length - argInd < 2)
+				throw new IllegalArgumentException("Missing script or Rom files");
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+		
+		try
+		{
+			EditScript script = EditScript.load(Path.of(args[argInd]));
+			ArrayList<Path> roms = new ArrayList<>();
+			for (int i = argInd + 1; i < args.length; i++)
+				roms.addAll(readRomList(args[i]));
+			if (outputDirectory != null)
+				Files.createDirectories(outputDirectory);
+			
+			long start = System.nanoTime();
+			List<Result> results = new BatchEditor(script, outputDirectory, dryRun).run(roms, threads);
+			int failed = 0;
+			for (Result r: results)
+			{
+				System.out.println(r);
+				if (!r.isSuccess())
+					failed++;
+			}
+			System.out.println(String.format("%d of %d Roms edited in %.1f ms", results.size() - failed, results.size(),
+					(System.nanoTime() - start) / 1e6));
+			System.exit((failed == 0)?0:1);
+		}
+		catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+}
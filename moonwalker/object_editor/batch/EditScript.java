@@ -0,0 +1,312 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import moonwalker.core.structures.MDirectObject;
+
+public class EditScript
+{
+	private final static int maxObjectCount = 256;
+	
+	private enum Op
+	{
+		ADD, REMOVE, MOVE, RETYPE, READDRESS
+	}
+	
+	private static class Command
+	{
+		private final int line;
+		private final int stage;
+		private final Op op;
+		private final Selector selector;
+		private final int[] args;
+		private final MDirectObject.Container container;
+		private final byte[] data;
+		
+		private Command(int line, int stage, Op op, Selector selector, int[] args, MDirectObject.Container container, byte[] data)
+		{
+			this.line = line;
+			this.stage = stage;
+			this.op = op;
+			this.selector = selector;
+			this.args = args;
+			this.container = container;
+			this.data = data;
+		}
+	}
+	
+	private static class Selector
+	{
+		private final int index, x, y, type;
+		
+		private Selector(int index, int x, int y, int type)
+		{
+			this.index = index;
+			this.x = x;
+			this.y = y;
+			this.type = type;
+		}
+		
+		private int find(ArrayList<MDirectObject> objects)
+		{
+			if (index >= 0)
+				return (index < objects.size())?index:-1;
+			for (int i = 0, n = objects.size(); i < n; i++)
+			{
+				MDirectObject obj = objects.get(i);
+				if ((obj.getAbsoluteX() == x) && (obj.getAbsoluteY() == y) && ((type < 0) || ((0xFFFF & obj.getType()) == type)))
+					return i;
+			}
+			return -1;
+		}
+		@Override
+		public String toString()
+		{
+			if (index >= 0)
+				return "#" + index;
+			return x + "," + y + ((type >= 0)?(":0x" + Integer.toHexString(type)):"");
+		}
+	}
+	
+	private final Command[] commands;
+	
+	private EditScript(Command[] commands)
+	{
+		this.commands = commands;
+	}
+	
+	public static EditScript load(Path file) throws IOException
+	{
+		return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+	}
+	public static EditScript parse(List<String> lines)
+	{
+		ArrayList<Command> ret = new ArrayList<>();
+		int stage = -1;
+		for (int i = 0; i < lines.size(); i++)
+		{
+			String line = lines.get(i);
+			int comment = line.indexOf(';');
+			if (comment >= 0)
+				line = line.substring(0, comment);
+			String[] tokens = line.trim().split("\\s+");
+			if (tokens[0].isEmpty())
+				continue;
+			
+			try
+			{
+				String keyword = tokens[0].toLowerCase(Locale.ROOT);
+				if (keyword.equals("stage"))
+				{
+					expectArgs(tokens, 1, 1);
+					stage = parseStage(tokens[1]);
+					continue;
+				}
+				
+				Op op;
+				try
+				{
+					op = Op.valueOf(keyword.toUpperCase(Locale.ROOT));
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException("Unknown command \"" + tokens[0] + "\"");
+				}
+				if (stage < 0)
+					throw new IllegalArgumentException("No stage selected");
+				ret.add(parseCommand(i + 1, stage, op, tokens));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+			}
+		}
+		return new EditScript(ret.toArray(new Command[ret.size()]));
+	}
+	private static Command parseCommand(int line, int stage, Op op, String[] tokens)
+	{
+		switch (op)
+		{
+			case ADD:
+			{
+				//add x y type [address=n] [container=region|initial|all] [data=hex]
+				expectArgs(tokens, 3, 6);
+				int[] args = {parseNumber(tokens[1], 0xFFFF), parseNumber(tokens[2], 0xFFFF), parseNumber(tokens[3], 0xFFFF), 0};
+				MDirectObject.Container container = MDirectObject.Container.REGION_TABLE;
+				byte[] data = new byte[8];
+				for (int i = 4; i < tokens.length; i++)
+				{
+					int eq = tokens[i].indexOf('=');
+					String key = (eq < 0)?tokens[i]:tokens[i].substring(0, eq).toLowerCase(Locale.ROOT);
+					String value = (eq < 0)?"":tokens[i].substring(eq + 1);
+					if (key.equals("address"))
+						args[3] = parseNumber(value, 0xFFFF);
+					else if (key.equals("container"))
+						container = parseContainer(value);
+					else if (key.equals("data"))
+						data = parseHex(value);
+					else
+						throw new IllegalArgumentException("Unknown option \"" + tokens[i] + "\"");
+				}
+				return new Command(line, stage, op, null, args, container, data);
+			}
+			case REMOVE:
+				expectArgs(tokens, 1, 1);
+				return new Command(line, stage, op, parseSelector(tokens[1]), new int[0], null, null);
+			case MOVE:
+				expectArgs(tokens, 3, 3);
+				return new Command(line, stage, op, parseSelector(tokens[1]),
+						new int[] {parseNumber(tokens[2], 0xFFFF), parseNumber(tokens[3], 0xFFFF)}, null, null);
+			default:
+				expectArgs(tokens, 2, 2);
+				return new Command(line, stage, op, parseSelector(tokens[1]), new int[] {parseNumber(tokens[2], 0xFFFF)}, null, null);
+		}
+	}
+	private static void expectArgs(String[] tokens, int min, int max)
+	{
+		int count = tokens.length - 1;
+		if ((count < min) || (count > max))
+			throw new IllegalArgumentException("\"" + tokens[0] + "\" expects " + ((min == max)?(min + ""):(min + " to " + max)) + " arguments, got " + count);
+	}
+	private static int parseStage(String s)
+	{
+		//same names as the stage tabs: "2-3" or just "6" for the last stage of a round
+		if (s.startsWith("#"))
+			return parseNumber(s.substring(1), 0xFF);
+		int dash = s.indexOf('-');
+		int round = parseNumber((dash < 0)?s:s.substring(0, dash), 0xFF);
+		int part = (dash < 0)?1:parseNumber(s.substring(dash + 1), 3);
+		if ((round < 1) || (part < 1))
+			throw new IllegalArgumentException("Invalid stage \"" + s + "\"");
+		return (round - 1) * 3 + (part - 1);
+	}
+	private static Selector parseSelector(String s)
+	{
+		//"#index" or "x,y" with an optional ":type"
+		if (s.startsWith("#"))
+			return new Selector(parseNumber(s.substring(1), 0xFFFF), 0, 0, -1);
+		int colon = s.indexOf(':');
+		String pos = (colon < 0)?s:s.substring(0, colon);
+		int comma = pos.indexOf(',');
+		if (comma < 0)
+			throw new IllegalArgumentException("Invalid object selector \"" + s + "\"");
+		return new Selector(-1, parseNumber(pos.substring(0, comma), 0xFFFF), parseNumber(pos.substring(comma + 1), 0xFFFF),
+				(colon < 0)?-1:parseNumber(s.substring(colon + 1), 0xFFFF));
+	}
+	private static MDirectObject.Container parseContainer(String s)
+	{
+		switch (s.toLowerCase(Locale.ROOT))
+		{
+			case "region":
+				return MDirectObject.Container.REGION_TABLE;
+			case "initial":
+				return MDirectObject.Container.INITIAL_TABLE;
+			case "all":
+				return MDirectObject.Container.ALL_TABLES;
+			default:
+				throw new IllegalArgumentException("Invalid container \"" + s + "\"");
+		}
+	}
+	private static int parseNumber(String s, int max)
+	{
+		int ret;
+		try
+		{
+			ret = Integer.decode(s);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid number \"" + s + "\"");
+		}
+		if ((ret < 0) || (ret > max))
+			throw new IllegalArgumentException("Value out of range: " + s);
+		return ret;
+	}
+	private static byte[] parseHex(String s)
+	{
+		if (((s.length() & 1) != 0) || (s.length() > 2 * 0xFF))
+			throw new IllegalArgumentException("Invalid data \"" + s + "\"");
+		byte[] ret = new byte[s.length() / 2];
+		for (int i = 0; i < ret.length; i++)
+		{
+			int hi = Character.digit(s.charAt(2 * i), 16);
+			int lo = Character.digit(s.charAt(2 * i + 1), 16);
+			if ((hi < 0) || (lo < 0))
+				throw new IllegalArgumentException("Invalid data \"" + s + "\"");
+			ret[i] = (byte) ((hi << 4) | lo);
+		}
+		return ret;
+	}
+	
+	public int getCommandCount()
+	{
+		return commands.length;
+	}
+	public int apply(ArrayList<MDirectObject>[] stages)
+	{
+		//commands run in script order, so index selectors see the effect of earlier commands
+		for (Command c: commands)
+		{
+			if (c.stage >= stages.length)
+				throw new IllegalStateException("Line " + c.line + ": stage " + c.stage + " does not exist, the Rom has " + stages.length + " stages");
+			ArrayList<MDirectObject> objects = stages[c.stage];
+			if (c.op == Op.ADD)
+			{
+				//same limit as the add dialog of the editor (StageDisplay.showAddDialog)
+				if (objects.size() >= maxObjectCount)
+					throw new IllegalStateException("Line " + c.line + ": object limit reached");
+				MDirectObject obj = new MDirectObject(c.args[0], c.args[1], 0, (short) c.args[2], c.data.clone(), c.container);
+				obj.setAllocationAddress(c.args[3]);
+				//the data length follows from the type, the editor pads or cuts the data the same way
+				obj.setData(Arrays.copyOf(obj.getData(), obj.getDataLength()));
+				objects.add(obj);
+				continue;
+			}
+			
+			int index = c.selector.find(objects);
+			if (index < 0)
+				throw new IllegalStateException("Line " + c.line + ": no object " + c.selector + " in stage " + c.stage);
+			MDirectObject obj = objects.get(index);
+			switch (c.op)
+			{
+				case REMOVE:
+					objects.remove(index);
+					break;
+				case MOVE:
+					obj.setAbsolutePosition(c.args[0], c.args[1]);
+					break;
+				case RETYPE:
+					obj.setType((short) c.args[0]);
+					obj.setData(Arrays.copyOf(obj.getData(), obj.getDataLength()));
+					break;
+				default:
+					obj.setAllocationAddress(c.args[0]);
+					break;
+			}
+		}
+		return commands.length;
+	}
+}
@@ -0,0 +1,414 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.batch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.utils.MoonwalkerIO;
+import moonwalker.core.utils.REV00Metadata;
+
+public class ObjectDiff
+{
+	public enum Kind
+	{
+		ADDED, REMOVED, MOVED, MODIFIED
+	}
+	
+	public static class Change
+	{
+		private final int stage;
+		private final Kind kind;
+		private final int beforeIndex, afterIndex;
+		private final MDirectObject before, after;
+		
+		private Change(int stage, Kind kind, int beforeIndex, MDirectObject before, int afterIndex, MDirectObject after)
+		{
+			this.stage = stage;
+			this.kind = kind;
+			this.beforeIndex = beforeIndex;
+			this.before = before;
+			this.afterIndex = afterIndex;
+			this.after = after;
+		}
+		
+		public int getStage()
+		{
+			return stage;
+		}
+		public Kind getKind()
+		{
+			return kind;
+		}
+		public int getBeforeIndex()
+		{
+			return beforeIndex;
+		}
+		public MDirectObject getBefore()
+		{
+			return before;
+		}
+		public int getAfterIndex()
+		{
+			return afterIndex;
+		}
+		public MDirectObject getAfter()
+		{
+			return after;
+		}
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("stage ").append(stage).append(' ').append(kind.name().toLowerCase(Locale.ROOT));
+			if (before != null)
+				appendObject(sb.append(" #").append(beforeIndex).append(' '), before);
+			if ((before != null) && (after != null))
+				sb.append(" ->");
+			if (after != null)
+				appendObject(sb.append(" #").append(afterIndex).append(' '), after);
+			return sb.toString();
+		}
+		private static void appendObject(StringBuilder sb, MDirectObject obj)
+		{
+			//the same columns as the text object tables
+			sb.append(String.format("%04X %d %d %04X ", 0xFFFF & obj.getType(), obj.getAbsoluteX(), obj.getAbsoluteY(), obj.getAllocationAddress()));
+			sb.append(obj.getContainer().name()).append(' ');
+			byte[] data = obj.getData();
+			if (data.length == 0)
+				sb.append('-');
+			for (byte b: data)
+				sb.append(String.format("%02X", b & 0xFF));
+		}
+	}
+	
+	private final int tolerance;
+	private final ForkJoinPool pool;
+	
+	public ObjectDiff(int tolerance, ForkJoinPool pool)
+	{
+		this.tolerance = tolerance;
+		this.pool = pool;
+	}
+	
+	public List<Change> compare(Path before, Path after) throws Exception
+	{
+		ForkJoinTask<MDirectObject[][]> loadAfter = pool.submit(() -> loadObjects(after));
+		MDirectObject[][] beforeArr = loadObjects(before);
+		try
+		{
+			return compare(beforeArr, loadAfter.get());
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = unwrap(e);
+			throw (cause instanceof Exception)?(Exception) cause:e;
+		}
+	}
+	private static Throwable unwrap(ExecutionException e)
+	{
+		//the pool wraps checked exceptions of its tasks, and may wrap them again when rethrowing in another thread
+		Throwable ret = e.getCause();
+		while ((ret.getClass() == RuntimeException.class) && (ret.getCause() != null))
+			ret = ret.getCause();
+		return ret;
+	}
+	public static MDirectObject[][] loadObjects(Path rom) throws Exception
+	{
+		byte[] romContent = Files.readAllBytes(rom);
+		return MoonwalkerIO.loadMainObjectArray(romContent, new REV00Metadata(romContent));
+	}
+	public List<Change> compare(MDirectObject[][] before, MDirectObject[][] after)
+	{
+		//every stage is matched on its own, a Rom with fewer stages compares as empty stages
+		int stageCount = Math.max(before.length, after.length);
+		ArrayList<ForkJoinTask<List<Change>>> tasks = new ArrayList<>(stageCount);
+		for (int i = 0; i < stageCount; i++)
+		{
+			int stage = i;
+			MDirectObject[] a = (i < before.length)?before[i]:new MDirectObject[0];
+			MDirectObject[] b = (i < after.length)?after[i]:new MDirectObject[0];
+			tasks.add(ForkJoinTask.adapt(() -> compareStage(stage, a, b, tolerance)));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		
+		ArrayList<Change> ret = new ArrayList<>();
+		for (ForkJoinTask<List<Change>> t: tasks)
+			ret.addAll(t.join());
+		return ret;
+	}
+	
+	public static List<Change> compareStage(int stage, MDirectObject[] before, MDirectObject[] after, int tolerance)
+	{
+		int[] match = new int[before.length];
+		Arrays.fill(match, -1);
+		boolean[] matched = new boolean[after.length];
+		
+		//unchanged objects and objects with only their container or data changed
+		matchByKey(before, after, match, matched, true);
+		//objects with a new allocation address
+		matchByKey(before, after, match, matched, false);
+		
+		ArrayList<Change> ret = new ArrayList<>();
+		for (int i = 0; i < before.length; i++)
+		{
+			if ((match[i] >= 0) && !sameContent(before[i], after[match[i]]))
+				ret.add(new Change(stage, Kind.MODIFIED, i, before[i], match[i], after[match[i]]));
+		}
+		
+		//moves are matched closest first among the objects of the same type
+		if (tolerance > 0)
+		{
+			ArrayList<long[]> candidates = new ArrayList<>();
+			for (int i = 0; i < before.length; i++)
+			{
+				if (match[i] >= 0)
+					continue;
+				for (int j = 0; j < after.length; j++)
+				{
+					if (matched[j] || (before[i].getType() != after[j].getType()))
+						continue;
+					int dist = Math.max(Math.abs(before[i].getAbsoluteX() - after[j].getAbsoluteX()),
+							Math.abs(before[i].getAbsoluteY() - after[j].getAbsoluteY()));
+					if (dist <= tolerance)
+					{
+						long penalty = (before[i].getAllocationAddress() == after[j].getAllocationAddress())?0:1;
+						candidates.add(new long[] {(penalty << 32) | dist, i, j});
+					}
+				}
+			}
+			candidates.sort((c1, c2) -> Long.compare(c1[0], c2[0]));
+			for (long[] c: candidates)
+			{
+				int i = (int) c[1];
+				int j = (int) c[2];
+				if ((match[i] >= 0) || matched[j])
+					continue;
+				match[i] = j;
+				matched[j] = true;
+				ret.add(new Change(stage, Kind.MOVED, i, before[i], j, after[j]));
+			}
+		}
+		
+		//an object that stayed in place but changed its type
+		HashMap<Integer, ArrayDeque<Integer>> byPosition = new HashMap<>();
+		for (int j = 0; j < after.length; j++)
+		{
+			if (!matched[j])
+				byPosition.computeIfAbsent(positionKey(after[j]), k -> new ArrayDeque<>()).add(j);
+		}
+		for (int i = 0; i < before.length; i++)
+		{
+			if (match[i] >= 0)
+				continue;
+			ArrayDeque<Integer> q = byPosition.get(positionKey(before[i]));
+			if ((q == null) || q.isEmpty())
+				ret.add(new Change(stage, Kind.REMOVED, i, before[i], -1, null));
+			else
+			{
+				int j = q.poll();
+				match[i] = j;
+				matched[j] = true;
+				ret.add(new Change(stage, Kind.MODIFIED, i, before[i], j, after[j]));
+			}
+		}
+		for (int j = 0; j < after.length; j++)
+		{
+			if (!matched[j])
+				ret.add(new Change(stage, Kind.ADDED, -1, null, j, after[j]));
+		}
+		
+		ret.sort((c1, c2) -> Integer.compare(sortIndex(c1, before.length), sortIndex(c2, before.length)));
+		return ret;
+	}
+	private static void matchByKey(MDirectObject[] before, MDirectObject[] after, int[] match, boolean[] matched, boolean withAddress)
+	{
+		HashMap<Long, ArrayDeque<Integer>> index = new HashMap<>();
+		for (int j = 0; j < after.length; j++)
+		{
+			if (!matched[j])
+				index.computeIfAbsent(objectKey(after[j], withAddress), k -> new ArrayDeque<>()).add(j);
+		}
+		for (int i = 0; i < before.length; i++)
+		{
+			if (match[i] >= 0)
+				continue;
+			ArrayDeque<Integer> q = index.get(objectKey(before[i], withAddress));
+			if ((q == null) || q.isEmpty())
+				continue;
+			int j = q.poll();
+			match[i] = j;
+			matched[j] = true;
+		}
+	}
+	private static long objectKey(MDirectObject obj, boolean withAddress)
+	{
+		long ret = ((long) positionKey(obj) << 32) | ((0xFFFFL & obj.getType()) << 16);
+		return withAddress?(ret | (0xFFFF & obj.getAllocationAddress())):ret;
+	}
+	private static int positionKey(MDirectObject obj)
+	{
+		return ((obj.getAbsoluteX() & 0xFFFF) << 16) | (obj.getAbsoluteY() & 0xFFFF);
+	}
+	private static boolean sameContent(MDirectObject a, MDirectObject b)
+	{
+		return (a.getAllocationAddress() == b.getAllocationAddress()) && (a.getContainer() == b.getContainer())
+				&& Arrays.equals(a.getData(), b.getData());
+	}
+	private static int sortIndex(Change c, int beforeLength)
+	{
+		//changes follow the order of the original objects, added ones come last
+		return (c.before != null)?c.beforeIndex:(beforeLength + c.afterIndex);
+	}
+	
+	public static void write(Writer w, List<Change> changes) throws IOException
+	{
+		for (Change c: changes)
+		{
+			w.write(c.toString());
+			w.write('\n');
+		}
+	}
+	
+	private static List<Path[]> readPairList(Path file) throws IOException
+	{
+		//one pair of Roms per line, separated by a tab
+		ArrayList<Path[]> ret = new ArrayList<>();
+		for (String line: Files.readAllLines(file, StandardCharsets.UTF_8))
+		{
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith(";"))
+				continue;
+			String[] parts = line.split("\t");
+			if (parts.length != 2)
+				throw new IOException("Expected two tab separated Roms: " + line);
+			ret.add(new Path[] {Path.of(parts[0].trim()), Path.of(parts[1].trim())});
+		}
+		return ret;
+	}
+	
+	public static void main(String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+		
+		int tolerance = 32;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path outputDirectory = null;
+		List<Path[]> pairs = null;
+		try
+		{
+			int argInd = 0;
+			for (; (argInd < args.length) && args[argInd].startsWith("-"); argInd++)
+			{
+				if (args[argInd].equals("-t"))
+					tolerance = Integer.parseInt(args[++argInd]);
+				else if (args[argInd].equals("-j"))
+					threads = Integer.parseInt(args[++argInd]);
+				else if (args[argInd].equals("-o"))
+					outputDirectory = Path.of(args[++argInd]);
+				else
+					throw new IllegalArgumentException("Unknown option " + args[argInd]);
+			}
+			if ((args.length - argInd == 1) && args[argInd].startsWith("@"))
+				pairs = readPairList(Path.of(args[argInd].substring(1)));
+			else if (args.length - argInd == 2)
+				pairs = List.<Path[]>of(new Path[] {Path.of(args[argInd]), Path.of(args[argInd + 1])});
+			else
+				throw new IllegalArgumentException("Expected two Roms or a @pair list");
+		}
+		catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ObjectDiff [-t tolerance] [-j threads] [-o dir] <before> <after> | @pairlist");
+			System.err.println("  -t <pixels>   largest distance an object may move and still count as the same object (default 32)");
+			System.err.println("  -j <threads>  worker threads (default: number of cores)");
+			System.err.println("  -o <dir>      write one .diff file per pair to <dir> instead of printing the changes");
+			System.err.println("A pair list holds one tab separated pair of Roms per line.");
+			System.exit(2);
+		}
+		
+		//pairs and their stages share one pool, an idle worker picks up stages of any pair
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		ObjectDiff diff = new ObjectDiff(tolerance, pool);
+		long start = System.nanoTime();
+		ArrayList<ForkJoinTask<List<Change>>> tasks = new ArrayList<>(pairs.size());
+		for (Path[] pair: pairs)
+			tasks.add(pool.submit(() -> diff.compare(pair[0], pair[1])));
+		
+		int changed = 0, failed = 0;
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)))
+		{
+			if (outputDirectory != null)
+				Files.createDirectories(outputDirectory);
+			for (int i = 0; i < pairs.size(); i++)
+			{
+				Path[] pair = pairs.get(i);
+				String name = pair[0] + " " + pair[1];
+				try
+				{
+					List<Change> changes = tasks.get(i).get();
+					if (!changes.isEmpty())
+						changed++;
+					if (outputDirectory == null)
+					{
+						out.write("--- " + pair[0] + "\n+++ " + pair[1] + "\n");
+						write(out, changes);
+					}
+					else
+					{
+						Path target = outputDirectory.resolve(String.format("%04d_%s.diff", i, pair[1].getFileName()));
+						try (Writer w = Files.newBufferedWriter(target, StandardCharsets.UTF_8))
+						{
+							write(w, changes);
+						}
+						out.write(name + ": " + changes.size() + " changes\n");
+					}
+				}
+				catch (ExecutionException e)
+				{
+					failed++;
+					Throwable cause = unwrap(e);
+					out.write(name + ": FAILED " + cause.getMessage() + " (" + cause.getClass().getSimpleName() + ")\n");
+				}
+			}
+			out.write(String.format("%d pairs compared in %.1f ms, %d with changes, %d failed%n", pairs.size(),
+					(System.nanoTime() - start) / 1e6, changed, failed));
+		}
+		catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		//like diff, 0 means no changes and 1 means changes were found
+		System.exit((failed > 0)?2:((changed > 0)?1:0));
+	}
+}
@@ -0,0 +1,91 @@
+package moonwalker.object_editor.gui;
+
+import java.util.ArrayList;
+import javax.swing.Timer;
+
+class AnimationClock
+{
+	interface Animation
+	{
+		boolean step(long now);
+	}
+	
+	private final static int easingSteps = 20;
+	private final static double[] easeOutTable = createEaseOutTable();
+	private static AnimationClock instance;
+	
+	private final Timer timer;
+	private final ArrayList<Animation> animations;
+	
+	private AnimationClock()
+	{
+		animations = new ArrayList<>();
+		timer = new Timer(1000 / RepaintScheduler.displayRefreshRate(), e -> tick());
+		timer.setCoalesce(true);
+	}
+	
+	public static AnimationClock getInstance()
+	{
+		if (instance == null)
+			instance = new AnimationClock();
+		return instance;
+	}
+	
+	public void start(Animation animation)
+	{
+		if (!animations.contains(animation))
+			animations.add(animation);
+		if (!timer.isRunning())
+			timer.start();
+	}
+	public void stop(Animation animation)
+	{
+		animations.remove(animation);
+		if (animations.isEmpty())
+			timer.stop();
+	}
+	public boolean isRunning(Animation animation)
+	{
+		return animations.contains(animation);
+	}
+	
+	private void tick()
+	{
+		long now = System.nanoTime();
+		for (int i = animations.size() - 1; i >= 0; i--)
+		{
+			if (!animations.get(i).step(now))
+				animations.remove(i);
+		}
+		if (animations.isEmpty())
+			timer.stop();
+	}
+	
+	public static double easeOut(double t)
+	{
+		if (t <= 0)
+			return 0;
+		if (t >= 1)
+			return 1;
+		
+		double pos = t * easingSteps;
+		int i = (int) pos;
+		double frac = pos - i;
+		return easeOutTable[i] + (easeOutTable[i + 1] - easeOutTable[i]) * frac;
+	}
+	private static double[] createEaseOutTable()
+	{
+		double[] ret = new double[easingSteps + 1];
+		double total = 0;
+		for (int i = 0; i < easingSteps; i++)
+			total += 1 / (i * i / 4.0 + 1);
+		
+		double sum = 0;
+		for (int i = 0; i < easingSteps; i++)
+		{
+			sum += 1 / (i * i / 4.0 + 1);
+			ret[i + 1] = sum / total;
+		}
+		return ret;
+	}
+}
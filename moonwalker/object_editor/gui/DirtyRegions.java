@@ -0,0 +1,55 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+class DirtyRegions
+{
+	private final static int maxRegions = 4;
+	
+	private final ArrayList<Rectangle> regions;
+	
+	public DirtyRegions()
+	{
+		regions = new ArrayList<>();
+	}
+	
+	public void add(Rectangle region)
+	{
+		for (int i = 0; i < regions.size(); i++)
+		{
+			Rectangle r = regions.get(i);
+			if (r.intersects(region))
+			{
+				regions.remove(i);
+				add(r.union(region));
+				return;
+			}
+		}
+		if (regions.size() >= maxRegions)
+		{
+			Rectangle union = new Rectangle(region);
+			for (Rectangle r: regions)
+				union.add(r);
+			regions.clear();
+			regions.add(union);
+		}
+		else
+			regions.add(new Rectangle(region));
+	}
+	public void translate(int dx, int dy)
+	{
+		ArrayList<Rectangle> shifted = new ArrayList<>(regions);
+		regions.clear();
+		for (Rectangle r: shifted)
+			add(new Rectangle(r.x + dx, r.y + dy, r.width, r.height));
+	}
+	public void clear()
+	{
+		regions.clear();
+	}
+	public ArrayList<Rectangle> list()
+	{
+		return regions;
+	}
+}
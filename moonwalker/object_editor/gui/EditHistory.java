@@ -0,0 +1,280 @@
+package moonwalker.object_editor.gui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import moonwalker.core.structures.MDirectObject;
+
+class EditHistory
+{
+	enum Field
+	{
+		ADDED, REMOVED, POSITION, TYPE, ADDRESS, CONTAINER, DATA
+	}
+	
+	static class Delta
+	{
+		private final int index;
+		private final Field field;
+		private long oldValue, newValue;
+		private final Object oldRef, newRef;
+		
+		private Delta(int index, Field field, long oldValue, long newValue, Object oldRef, Object newRef)
+		{
+			this.index = index;
+			this.field = field;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.oldRef = oldRef;
+			this.newRef = newRef;
+		}
+		
+		public static Delta added(int index, MDirectObject obj)
+		{
+			return new Delta(index, Field.ADDED, 0, 0, null, obj);
+		}
+		public static Delta removed(int index, MDirectObject obj)
+		{
+			return new Delta(index, Field.REMOVED, 0, 0, obj, null);
+		}
+		public static Delta moved(int index, int oldX, int oldY, int newX, int newY)
+		{
+			return new Delta(index, Field.POSITION, packPosition(oldX, oldY), packPosition(newX, newY), null, null);
+		}
+		public static void edited(ArrayList<Delta> ret, int index, MDirectObject previous, MDirectObject obj)
+		{
+			//only the fields that actually changed are kept
+			if ((previous.getAbsoluteX() != obj.getAbsoluteX()) || (previous.getAbsoluteY() != obj.getAbsoluteY()))
+				ret.add(moved(index, previous.getAbsoluteX(), previous.getAbsoluteY(), obj.getAbsoluteX(), obj.getAbsoluteY()));
+			if (previous.getType() != obj.getType())
+				ret.add(new Delta(index, Field.TYPE, previous.getType(), obj.getType(), null, null));
+			if (previous.getAllocationAddress() != obj.getAllocationAddress())
+				ret.add(new Delta(index, Field.ADDRESS, previous.getAllocationAddress(), obj.getAllocationAddress(), null, null));
+			if (previous.getContainer() != obj.getContainer())
+				ret.add(new Delta(index, Field.CONTAINER, 0, 0, previous.getContainer(), obj.getContainer()));
+			if (!Arrays.equals(previous.getData(), obj.getData()))
+				ret.add(new Delta(index, Field.DATA, 0, 0, previous.getData().clone(), obj.getData().clone()));
+		}
+		
+		private int size()
+		{
+			int ret = 48;
+			if (oldRef instanceof byte[])
+				ret += 16 + ((byte[]) oldRef).length;
+			if (newRef instanceof byte[])
+				ret += 16 + ((byte[]) newRef).length;
+			if ((field == Field.ADDED) || (field == Field.REMOVED))
+				ret += 64 + ((MDirectObject) ((oldRef != null)?oldRef:newRef)).getData().length;
+			return ret;
+		}
+		private void apply(StageDisplay sd, boolean undo)
+		{
+			long value = undo?oldValue:newValue;
+			Object ref = undo?oldRef:newRef;
+			switch (field)
+			{
+				case ADDED:
+				case REMOVED:
+					if (ref != null)
+						sd.insertObject(index, (MDirectObject) ref);
+					else
+						sd.removeObjectAt(index);
+					break;
+				case POSITION:
+					sd.editObject(index, obj -> obj.setAbsolutePosition((int) (value >> 32), (int) value));
+					break;
+				case TYPE:
+					sd.editObject(index, obj -> obj.setType((short) value));
+					break;
+				case ADDRESS:
+					sd.editObject(index, obj -> obj.setAllocationAddress((int) value));
+					break;
+				case CONTAINER:
+					sd.editObject(index, obj -> obj.setContainer((MDirectObject.Container) ref));
+					break;
+				case DATA:
+					sd.editObject(index, obj -> obj.setData(((byte[]) ref).clone()));
+					break;
+			}
+		}
+		private static long packPosition(int x, int y)
+		{
+			return ((long) x << 32) | (y & 0xFFFFFFFFL);
+		}
+	}
+	
+	private static class Entry
+	{
+		private final int stage;
+		private final long sequence;
+		private final Delta[] deltas;
+		private int size;
+		private boolean dragging;
+		
+		private Entry(int stage, long sequence, Delta[] deltas)
+		{
+			this.stage = stage;
+			this.sequence = sequence;
+			this.deltas = deltas;
+			size = 32;
+			for (Delta d: deltas)
+				size += d.size();
+		}
+	}
+	
+	private final ArrayDeque<Entry>[] undoStacks, redoStacks;
+	private long size, maxSize;
+	private long sequence;
+	private boolean applying;
+	
+	@SuppressWarnings("unchecked")
+	public EditHistory(int stageCount, long maxBytes)
+	{
+		undoStacks = new ArrayDeque[stageCount];
+		redoStacks = new ArrayDeque[stageCount];
+		for (int i = 0; i < stageCount; i++)
+		{
+			undoStacks[i] = new ArrayDeque<>();
+			redoStacks[i] = new ArrayDeque<>();
+		}
+		maxSize = maxBytes;
+	}
+	
+	public void record(int stage, Delta... deltas)
+	{
+		if (applying || (deltas.length == 0))
+			return;
+		
+		clearRedo(stage);
+		Entry entry = new Entry(stage, sequence++, deltas);
+		undoStacks[stage].push(entry);
+		size += entry.size;
+		trim();
+	}
+	public void recordDrag(int stage, int index, int prevX, int prevY, int x, int y)
+	{
+		if (applying)
+			return;
+		
+		//every drag event of the same object extends the open entry instead of adding one
+		Entry top = undoStacks[stage].peek();
+		if ((top != null) && top.dragging && (top.deltas[0].index == index))
+		{
+			top.deltas[0].newValue = Delta.packPosition(x, y);
+			return;
+		}
+		record(stage, Delta.moved(index, prevX, prevY, x, y));
+		undoStacks[stage].peek().dragging = true;
+	}
+	public void endDrag(int stage)
+	{
+		Entry top = undoStacks[stage].peek();
+		if (top != null)
+			top.dragging = false;
+	}
+	
+	public boolean canUndo(int stage)
+	{
+		return !undoStacks[stage].isEmpty();
+	}
+	public boolean canRedo(int stage)
+	{
+		return !redoStacks[stage].isEmpty();
+	}
+	public boolean undo(int stage, StageDisplay sd)
+	{
+		Entry entry = undoStacks[stage].poll();
+		if (entry == null)
+			return false;
+		
+		entry.dragging = false;
+		applying = true;
+		try
+		{
+			for (int i = entry.deltas.length - 1; i >= 0; i--)
+				entry.deltas[i].apply(sd, true);
+		}
+		finally
+		{
+			applying = false;
+		}
+		redoStacks[stage].push(entry);
+		return true;
+	}
+	public boolean redo(int stage, StageDisplay sd)
+	{
+		Entry entry = redoStacks[stage].poll();
+		if (entry == null)
+			return false;
+		
+		applying = true;
+		try
+		{
+			for (Delta d: entry.deltas)
+				d.apply(sd, false);
+		}
+		finally
+		{
+			applying = false;
+		}
+		undoStacks[stage].push(entry);
+		return true;
+	}
+	public boolean isApplying()
+	{
+		return applying;
+	}
+	
+	public void clear()
+	{
+		for (int i = 0; i < undoStacks.length; i++)
+		{
+			undoStacks[i].clear();
+			redoStacks[i].clear();
+		}
+		size = 0;
+	}
+	public long getSize()
+	{
+		return size;
+	}
+	public void setMaxSize(long bytes)
+	{
+		maxSize = bytes;
+		trim();
+	}
+	
+	private void clearRedo(int stage)
+	{
+		for (Entry e: redoStacks[stage])
+			size -= e.size;
+		redoStacks[stage].clear();
+	}
+	private void trim()
+	{
+		//the stack holding the globally oldest entry loses an entry first, the newest edit is always kept;
+		//an undo stack is oldest at its bottom, a redo stack at its top (the entry undone last),
+		//but both can only drop their bottom, a redo entry is unusable once the one above it is gone
+		while (size > maxSize)
+		{
+			ArrayDeque<Entry> oldest = null;
+			long oldestSequence = Long.MAX_VALUE;
+			for (int i = 0; i < undoStacks.length; i++)
+			{
+				if (!undoStacks[i].isEmpty() && (undoStacks[i].peekLast().sequence < oldestSequence))
+				{
+					oldest = undoStacks[i];
+					oldestSequence = oldest.peekLast().sequence;
+				}
+				if (!redoStacks[i].isEmpty() && (redoStacks[i].peekFirst().sequence < oldestSequence))
+				{
+					oldest = redoStacks[i];
+					oldestSequence = oldest.peekFirst().sequence;
+				}
+			}
+			if ((oldest == null) || (oldestSequence == sequence - 1))
+				return;
+			size -= oldest.pollLast().size;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class MarkerAtlas
+{
+	private final static int maxSpriteSize = 96;
+	private final static int bucketsPerPixel = 2;
+	private final static int cachedBucketCount = 16;
+	private final static int cachedClusterCount = 512;
+	private final static float clusterStrokeWidth = 1.5f;
+	
+	private final ObjectPalette palette;
+	private final int tableLength;
+	
+	private final LinkedHashMap<Integer, BufferedImage[]> bucketCache;
+	private int currentBucket;
+	private BufferedImage[] currentSprites;
+	private BufferedImage defaultSprite;
+	private int spriteOffset;
+	
+	private final LinkedHashMap<Long, BufferedImage> clusterCache;
+	private final LinkedHashMap<Integer, BufferedImage> labelCache;
+	private Font labelFont;
+	private Color labelColor;
+	
+	public MarkerAtlas(ObjectPalette objectPalette)
+	{
+		palette = objectPalette;
+		tableLength = palette.getDefinedLength();
+		
+		currentBucket = -1;
+		bucketCache = new LinkedHashMap<>(cachedBucketCount, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage[]> eldest)
+			{
+				return size() > cachedBucketCount;
+			}
+		};
+		clusterCache = new LinkedHashMap<>(64, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest)
+			{
+				return size() > cachedClusterCount;
+			}
+		};
+		labelCache = new LinkedHashMap<>(64, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest)
+			{
+				return size() > cachedClusterCount;
+			}
+		};
+	}
+	
+	public ObjectPalette getPalette()
+	{
+		return palette;
+	}
+	public boolean setMarkerSize(double size, float strokeWidth)
+	{
+		int bucket = (int) Math.round(size * bucketsPerPixel);
+		if (bucket == currentBucket)
+			return currentSprites != null;
+		
+		currentBucket = bucket;
+		if (size + strokeWidth > maxSpriteSize)
+		{
+			currentSprites = null;
+			return false;
+		}
+		
+		BufferedImage[] sprites = bucketCache.get(bucket);
+		if (sprites == null)
+		{
+			sprites = buildSprites((double) bucket / bucketsPerPixel, strokeWidth);
+			bucketCache.put(bucket, sprites);
+		}
+		currentSprites = sprites;
+		defaultSprite = sprites[tableLength];
+		spriteOffset = defaultSprite.getWidth() / 2;
+		return true;
+	}
+	public void drawMarker(Graphics2D g2d, int type, double x, double y)
+	{
+		BufferedImage sprite = (type < tableLength)?currentSprites[type]:defaultSprite;
+		g2d.drawImage(sprite, (int) Math.round(x) - spriteOffset, (int) Math.round(y) - spriteOffset, null);
+	}
+	
+	public void drawCluster(Graphics2D g2d, int type, double radius, double x, double y)
+	{
+		int bucket = (int) Math.round(radius * 2 * bucketsPerPixel);
+		long key = ((long) type << 32) | bucket;
+		BufferedImage sprite = clusterCache.get(key);
+		if (sprite == null)
+		{
+			double size = (double) bucket / bucketsPerPixel;
+			int dim = (int) Math.ceil(size + clusterStrokeWidth) + 2;
+			double origin = dim / 2 - size / 2;
+			sprite = renderSprite(dim, new Ellipse2D.Double(origin, origin, size, size), new BasicStroke(clusterStrokeWidth),
+					palette.getFill(type), palette.getOutline(type));
+			clusterCache.put(key, sprite);
+		}
+		int offset = sprite.getWidth() / 2;
+		g2d.drawImage(sprite, (int) Math.round(x) - offset, (int) Math.round(y) - offset, null);
+	}
+	public void drawLabel(Graphics2D g2d, int count, Color color, double x, double y)
+	{
+		Font font = g2d.getFont();
+		if (!font.equals(labelFont) || !color.equals(labelColor))
+		{
+			labelFont = font;
+			labelColor = color;
+			labelCache.clear();
+		}
+		
+		BufferedImage sprite = labelCache.get(count);
+		if (sprite == null)
+		{
+			String text = Integer.toString(count);
+			FontMetrics fm = g2d.getFontMetrics();
+			sprite = new BufferedImage(fm.stringWidth(text) + 2, fm.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+			Graphics2D sg = sprite.createGraphics();
+			sg.setRenderingHints(g2d.getRenderingHints());
+			sg.setFont(font);
+			sg.setColor(color);
+			sg.drawString(text, 1, fm.getAscent());
+			sg.dispose();
+			labelCache.put(count, sprite);
+		}
+		g2d.drawImage(sprite, (int) Math.round(x) - 1, (int) Math.round(y) - g2d.getFontMetrics().getAscent(), null);
+	}
+	
+	private BufferedImage[] buildSprites(double size, float strokeWidth)
+	{
+		int dim = (int) Math.ceil(size + strokeWidth) + 2;
+		double origin = dim / 2 - size / 2;
+		Ellipse2D ellip = new Ellipse2D.Double(origin, origin, size, size);
+		BasicStroke stroke = new BasicStroke(strokeWidth);
+		
+		BufferedImage[] ret = new BufferedImage[tableLength + 1];
+		ret[tableLength] = renderSprite(dim, ellip, stroke, palette.getDefaultFill(), palette.getDefaultOutline());
+		for (int type = 0; type < tableLength; type++)
+		{
+			if (!palette.isDefined(type))
+				ret[type] = ret[tableLength];
+			else
+				ret[type] = renderSprite(dim, ellip, stroke, palette.getFill(type), palette.getOutline(type));
+		}
+		return ret;
+	}
+	private static BufferedImage renderSprite(int dim, Ellipse2D ellip, BasicStroke stroke, Color fill, Color outline)
+	{
+		BufferedImage sprite = new BufferedImage(dim, dim, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g2d = sprite.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2d.setStroke(stroke);
+		g2d.setColor(fill);
+		g2d.fill(ellip);
+		g2d.setColor(outline);
+		g2d.draw(ellip);
+		g2d.dispose();
+		return sprite;
+	}
+}
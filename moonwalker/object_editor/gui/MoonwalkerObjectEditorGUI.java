@@ -24,23 +24,31 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
+import java.awt.GridLayout;
 import java.awt.Insets;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.prefs.Preferences;
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
@@ -49,6 +57,7 @@ import javax.swing.ButtonGroup;
 import javax.swing.InputMap;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JColorChooser;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -58,6 +67,7 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
@@ -69,12 +79,21 @@ import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileFilter;
 import moonwalker.core.structures.MDirectObject;
 import moonwalker.core.structures.MoonwalkerPalette;
 import moonwalker.core.utils.MoonwalkerIO;
 import moonwalker.core.utils.MoonwalkerMetadata;
 import moonwalker.core.utils.REV00Metadata;
+import moonwalker.object_editor.batch.ObjectDiff;
+import moonwalker.object_editor.io.EditJournal;
+import moonwalker.object_editor.io.IndexedImages;
+import moonwalker.object_editor.io.ObjectTableReader;
+import moonwalker.object_editor.io.ObjectTableWriter;
+import moonwalker.object_editor.io.RomBuffer;
+import moonwalker.object_editor.io.StageDiskCache;
 
 public class MoonwalkerObjectEditorGUI extends JFrame
 {
@@ -90,12 +109,31 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 	private MoonwalkerMetadata meta;
 	
 	private StageDisplay[] stageDisplayArr;
+	private JProgressBar decodeProgress, saveProgress;
+	private JButton bCancelSave;
+	private SavePipeline savePipeline;
+	private EditJournal journal;
+	private EditHistory history;
+	private List<ObjectDiff.Change> comparison;
+	private int comparisonGeneration;
+	private boolean[] unsavedStages;
+	private boolean closing;
+	private RomBuffer romBuffer;
+	private StageDiskCache diskCache;
+	private String stageCacheKey;
+	private StageImageCache imageCache;
+	private ForkJoinPool decodePool;
+	private boolean[] pendingStages;
+	private boolean[] staleStages;
+	private long[] stageFingerprints;
+	private int pendingStageCount;
+	private int stageGeneration;
 	
-	private JFileChooser openDialog, saveDialog;
+	private JFileChooser openDialog, saveDialog, statisticsDialog, paletteDialog, objectTableDialog, compareDialog, diffDialog;
+	private ObjectPalette objectPalette;
+	private MarkerAtlas markerAtlas;
 	private FileFilter binFileFilter;
 	
-	private ScheduledThreadPoolExecutor zoomAnimationExecutor;
-	
 	private Preferences prefs;
 	
 	private final static String VERSION = "0.7.0";
@@ -104,13 +142,46 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 	public MoonwalkerObjectEditorGUI(File romFile)
 	{
 		setLocationByPlatform(true);
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
 		setLayout(new BorderLayout());
 		setTitle("Moonwalker Object Editor v" + VERSION);
 		setSize(900, 600);
 		
 		prefs = Preferences.userNodeForPackage(MoonwalkerObjectEditorGUI.class);
 		
+		savePipeline = new SavePipeline();
+		addWindowListener(new WindowAdapter()
+		{
+			@Override
+			public void windowClosing(WindowEvent e)
+			{
+				if (closing)
+					return;
+				closing = true;
+				if (!savePipeline.isBusy())
+				{
+					shutdown();
+					return;
+				}
+				
+				//let a save in flight reach its rename before the vm exits, the edt keeps showing its progress meanwhile
+				setEnabled(false);
+				setTitle(getTitle() + " - finishing save before exit");
+				Thread exitThread = new Thread(() ->
+				{
+					try
+					{
+						savePipeline.awaitIdle(30000);
+					}
+					catch (InterruptedException ex)
+					{}
+					SwingUtilities.invokeLater(() -> shutdown());
+				}, "Exit");
+				exitThread.setDaemon(true);
+				exitThread.start();
+			}
+		});
+		
 		binFileFilter = new FileFilter()
 		{
 			@Override
@@ -157,7 +228,8 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 						File f = openDialog.getSelectedFile();
 						prefs.put("OpenDialogPath", f.getParent());
 						
-						byte[] romContent = Files.readAllBytes(f.toPath());
+						romBuffer = RomBuffer.open(f.toPath());
+						byte[] romContent = romBuffer.getContent();
 						meta = new REV00Metadata(romContent);
 						MDirectObject[][] oArr = MoonwalkerIO.loadMainObjectArray(romContent, meta);
 						
@@ -165,6 +237,7 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 						for (int i = 0; i < mainObjectArr.length; i++)
 							mainObjectArr[i] = new ArrayList<MDirectObject>(Arrays.asList(oArr[i]));
 						rom = f;
+						openJournal(f.toPath(), romContent);
 						
 						initFrame(romContent);
 					}
@@ -183,75 +256,53 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 				dispose();
 		});
 	}
-	private void initFrame(byte[] romContent)
+	private void initFrame(byte[] romContent) throws IOException
 	{
-		HashMap<Integer, Color> outlineColorMap = new HashMap<>();
-		HashMap<Integer, Color> fillColorMap = new HashMap<>();
-		fillMaps(outlineColorMap, fillColorMap);
+		if (objectPalette == null)
+		{
+			objectPalette = loadObjectPalette();
+			markerAtlas = new MarkerAtlas(objectPalette);
+		}
+		if (decodePool == null)
+			decodePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 		
-		ArrayList<StageDisplay> stageDisplayList = new ArrayList<>();
+		if (diskCache == null)
+		{
+			try
+			{
+				diskCache = new StageDiskCache(StageDiskCache.getDefaultDirectory(),
+						prefs.getLong("StageDiskCacheSize", 512) * 1024 * 1024);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
 		
-		zoomAnimationExecutor = new ScheduledThreadPoolExecutor(1);
+		stageCacheKey = StageDiskCache.createKey(romContent, meta);
+		pendingStages = new boolean[mainObjectArr.length];
+		staleStages = new boolean[mainObjectArr.length];
+		stageFingerprints = new long[mainObjectArr.length];
+		imageCache = new StageImageCache(prefs.getLong("StageImageCacheSize", 256) * 1024 * 1024, this::evictStage,
+				ind -> ind == mainTabPane.getSelectedIndex());
+		history = new EditHistory(mainObjectArr.length, prefs.getLong("UndoHistorySize", 1024) * 1024);
 		
 		tabPane = new JTabbedPane();
 		
 		mainTabPane = new JTabbedPane();
-		int imgIndex = 0;
-		for (; imgIndex < mainObjectArr.length; imgIndex++)
+		stageDisplayArr = new StageDisplay[mainObjectArr.length];
+		for (int imgIndex = 0; imgIndex < mainObjectArr.length; imgIndex++)
 		{
-			try
-			{
-				String stageName;
-				if (imgIndex < (mainObjectArr.length - 1))
-					stageName = ((imgIndex / 3) + 1) + "-" + ((imgIndex % 3) + 1);
-				else
-					stageName = ((imgIndex / 3) + 1) + "";
-				
-				MoonwalkerPalette pal = MoonwalkerIO.loadPalette(romContent, imgIndex, meta);
-				BufferedImage img = optimizeImage(MoonwalkerIO.loadMainStageArea(romContent, imgIndex, meta)
-						.createLayerA(pal, false));
-				
-				int ind = imgIndex;
-				
-				StageDisplay stageDisplay = new StageDisplay(mainObjectArr[ind], meta, img, outlineColorMap, fillColorMap,
-						prefs, zoomAnimationExecutor);
-				
-				JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, true,
-						stageDisplay.getImagePanel(), stageDisplay.getDescriptionPanel());
-				splitPane.setResizeWeight(1);
-				
-				stageDisplayList.add(stageDisplay);
-				mainTabPane.addTab(stageName, splitPane);
-				
-				ChangeListener chL = new ChangeListener()
-				{
-					@Override
-					public void stateChanged(ChangeEvent e)
-					{
-						if (mainTabPane.getSelectedIndex() == ind)
-						{
-							splitPane.setDividerLocation(splitPane.getSize().width - 200);
-							mainTabPane.removeChangeListener(this);
-						}
-					}
-				};
-				mainTabPane.addChangeListener(chL);
-				SwingUtilities.invokeLater(() ->
-				{
-					splitPane.setDividerLocation(splitPane.getSize().width - 200);
-				});
-			}
-			catch (Exception e)
-			{}
+			String stageName;
+			if (imgIndex < (mainObjectArr.length - 1))
+				stageName = ((imgIndex / 3) + 1) + "-" + ((imgIndex % 3) + 1);
+			else
+				stageName = ((imgIndex / 3) + 1) + "";
+			
+			mainTabPane.addTab(stageName, createMessagePanel("[Decoding stage...]", Color.GRAY));
 		}
 		if (mainTabPane.getTabCount() <= 0)
-		{
-			JPanel panel = new JPanel();
-			JLabel label = new JLabel("[No map image found.]");
-			label.setForeground(Color.RED);
-			panel.add(label);
-			tabPane.addTab("Main Stages", panel);
-		}
+			tabPane.addTab("Main Stages", createMessagePanel("[No map image found.]", Color.RED));
 		else
 			tabPane.addTab("Main Stages", mainTabPane);
 		
@@ -275,24 +326,24 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 		
 		add(tabPane, BorderLayout.CENTER);
 		
-		stageDisplayArr = stageDisplayList.toArray(l -> new StageDisplay[l]);
-		
-		zoomAnimationExecutor = new ScheduledThreadPoolExecutor(1);
-		
 		JPanel southPanel = new JPanel();
 		
 		JButton bAdd = new JButton("Add");
 		
-		Runnable addAction = () -> stageDisplayArr[mainTabPane.getSelectedIndex()].showAddDialog(this);
+		Runnable addAction = () ->
+		{
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if (stageDisp != null)
+				stageDisp.showAddDialog(this);
+		};
 		Runnable editAction = () ->
 		{
-			int stageIndex = mainTabPane.getSelectedIndex();
-			if (stageIndex < 0)
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if (stageDisp == null)
 			{
 				JOptionPane.showMessageDialog(this, "No stage selected.", "Error", JOptionPane.ERROR_MESSAGE);
 				return;
 			}
-			StageDisplay stageDisp = stageDisplayArr[stageIndex];
 			MDirectObject object = stageDisp.getSelectedObject();
 			if (object == null)
 			{
@@ -300,21 +351,30 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 				return;
 			}
 			
-			StageDisplay sd = stageDisplayArr[stageIndex];
-			sd.showEditDialog(this, object);
+			stageDisp.showEditDialog(this, object);
+		};
+		Runnable undoAction = () ->
+		{
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if (stageDisp != null)
+				history.undo(mainTabPane.getSelectedIndex(), stageDisp);
+		};
+		Runnable redoAction = () ->
+		{
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if (stageDisp != null)
+				history.redo(mainTabPane.getSelectedIndex(), stageDisp);
 		};
 		Callable<Boolean> silentRemoveAction = () ->
 		{
-			int stageIndex = mainTabPane.getSelectedIndex();
-			if (stageIndex < 0)
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if (stageDisp == null)
 				return Boolean.FALSE;
-			StageDisplay stageDisp = stageDisplayArr[stageIndex];
 			MDirectObject object = stageDisp.getSelectedObject();
 			if (object == null)
 				return Boolean.FALSE;
 			
-			stageDisp.setSelectedObject(null);
-			mainObjectArr[stageIndex].remove(object);
+			stageDisp.removeObject(object);
 			
 			mainTabPane.repaint();
 			
@@ -355,25 +415,74 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 							JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION))
 						return;
 				
-				try
+				//the objects are copied here, serializing and writing happen on the save thread
+				boolean modified = false;
+				boolean[] modifiedStages = new boolean[stageDisplayArr.length];
+				for (int i = 0; i < stageDisplayArr.length; i++)
 				{
-					byte[] modifiedRom = Arrays.copyOf(romContent, romContent.length);
-					MoonwalkerIO.saveMainObjectArray(modifiedRom, deepToArray(mainObjectArr), meta);
-					MoonwalkerIO.fixChecksum(modifiedRom);
-					try (FileOutputStream fos = new FileOutputStream(f))
-					{
-						fos.write(modifiedRom);
-					}
-					JOptionPane.showMessageDialog(this, "Rom saved successfully.", "Moonwalker Object Editor", JOptionPane.INFORMATION_MESSAGE);
+					StageDisplay sd = stageDisplayArr[i];
+					modifiedStages[i] = ((sd != null) && sd.isModified()) || unsavedStages[i];
+					modified |= modifiedStages[i];
+					if (sd != null)
+						sd.setModified(false);
+					unsavedStages[i] = false;
 				}
-				catch (Exception ex)
+				EditJournal saveJournal = journal;
+				int journalMark = (journal != null)?journal.mark():0;
+				File romFile = rom;
+				Runnable restoreModified = () ->
 				{
-					ex.printStackTrace();
-					CustomDialogs.showExceptionDialog(this, limitString("Unable to create ROM file. \nReason: "
-								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
-								, 100),
-							"Error", ex);
-				}
+					for (int i = 0; i < modifiedStages.length; i++)
+					{
+						if (!modifiedStages[i])
+							continue;
+						if (stageDisplayArr[i] != null)
+							stageDisplayArr[i].setModified(true);
+						else
+							unsavedStages[i] = true;
+					}
+				};
+				
+				savePipeline.submit(new SavePipeline.Request(romBuffer, f.toPath(), mainObjectArr, meta, modified,
+						prefs.getBoolean("IncrementalSave", true), prefs.getBoolean("VerifyChecksum", false),
+						new SavePipeline.Listener()
+						{
+							@Override
+							public void progress(String message, int percent)
+							{
+								saveProgress.setString(message);
+								saveProgress.setValue(percent);
+								saveProgress.setVisible(true);
+								bCancelSave.setVisible(true);
+							}
+							@Override
+							public void finished(Path target, int bytesWritten, long romCrc)
+							{
+								updateSaveProgress();
+								if ((saveJournal != null) && (saveJournal == journal) && isSameFile(target, romFile))
+								{
+									//the journaled edits up to the save are part of the rom file now
+									saveJournal.rebase(romBuffer.length(), romCrc, journalMark);
+								}
+								JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Rom saved successfully.", "Moonwalker Object Editor", JOptionPane.INFORMATION_MESSAGE);
+							}
+							@Override
+							public void cancelled(Path target)
+							{
+								restoreModified.run();
+								updateSaveProgress();
+							}
+							@Override
+							public void failed(Path target, Exception ex)
+							{
+								restoreModified.run();
+								updateSaveProgress();
+								CustomDialogs.showExceptionDialog(MoonwalkerObjectEditorGUI.this, limitString("Unable to create ROM file. \nReason: "
+											+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+											, 100),
+										"Error", ex);
+							}
+						}));
 			}
 		};
 		Runnable loadAction = () ->
@@ -399,7 +508,8 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 					File f = openDialog.getSelectedFile();
 					prefs.put("OpenDialogPath", f.getParent());
 					
-					byte[] romCont = Files.readAllBytes(f.toPath());
+					RomBuffer romBuf = RomBuffer.open(f.toPath());
+					byte[] romCont = romBuf.getContent();
 					meta = new REV00Metadata(romCont);
 					MDirectObject[][] oArr = MoonwalkerIO.loadMainObjectArray(romCont, meta);
 					if (mainTabPane.getTabCount() > oArr.length)
@@ -408,17 +518,38 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 					mainObjectArr = new ArrayList[oArr.length];
 					for (int i = 0; i < mainObjectArr.length; i++)
 						mainObjectArr[i] = new ArrayList<MDirectObject>(Arrays.asList(oArr[i]));
+					boolean sameStages = hasSameStageData(romBuffer.getContent(), romCont, oArr, meta);
 					rom = f;
+					romBuffer = romBuf;
+					history.clear();
+					setComparison(null);
+					openJournal(f.toPath(), romCont);
 					
-					for (int i = 0; i < mainObjectArr.length; i++)
+					for (int i = 0; i < stageDisplayArr.length; i++)
+					{
+						if (stageDisplayArr[i] != null)
+							stageDisplayArr[i].setObjects(mainObjectArr[i]);
+					}
+					
+					if (!sameStages)
 					{
-						StageDisplay sd = stageDisplayArr[i];
-						sd.setObjects(mainObjectArr[i]);
+						//decoded images are kept until the new decode shows whether they changed
+						stageCacheKey = StageDiskCache.createKey(romCont, meta);
+						stageGeneration++;
+						Arrays.fill(pendingStages, false);
+						pendingStageCount = 0;
+						updateDecodeProgress();
 						
-						MoonwalkerPalette pal = MoonwalkerIO.loadPalette(romContent, i, meta);
-						BufferedImage img = optimizeImage(MoonwalkerIO.loadMainStageArea(romCont, i, meta)
-								.createLayerA(pal, false));
-						sd.setImage(img);
+						//prefetched stages without a view are decoded again once they are selected
+						for (int i = 0; i < stageDisplayArr.length; i++)
+							staleStages[i] = imageCache.contains(i);
+						
+						requestStage(mainTabPane.getSelectedIndex());
+						for (int i = 0; i < stageDisplayArr.length; i++)
+						{
+							if (staleStages[i] && (stageDisplayArr[i] != null))
+								requestStage(i);
+						}
 					}
 					
 					mainTabPane.repaint();
@@ -445,6 +576,21 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 		southPanel.add(bSave);
 		southPanel.add(bLoad);
 		
+		decodeProgress = new JProgressBar();
+		decodeProgress.setIndeterminate(true);
+		decodeProgress.setStringPainted(true);
+		decodeProgress.setVisible(false);
+		southPanel.add(decodeProgress);
+		
+		saveProgress = new JProgressBar(0, 100);
+		saveProgress.setStringPainted(true);
+		saveProgress.setVisible(false);
+		bCancelSave = new JButton("Cancel save");
+		bCancelSave.setVisible(false);
+		bCancelSave.addActionListener(e -> savePipeline.cancel());
+		southPanel.add(saveProgress);
+		southPanel.add(bCancelSave);
+		
 		add(southPanel, BorderLayout.SOUTH);
 		
 		JMenuBar menuBar = new JMenuBar();
@@ -453,14 +599,34 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 		JMenuItem mOpen = new JMenuItem("Open...");
 		JMenuItem mSave = new JMenuItem("Save...");
 		JMenuItem mScale = new JMenuItem("Set scale...");
+		JMenuItem mClusterScale = new JMenuItem("Set clustering threshold...");
+		JMenuItem mImageCache = new JMenuItem("Set image cache size...");
+		JMenuItem mDiskCache = new JMenuItem("Set disk cache size...");
+		JMenuItem mUndoSize = new JMenuItem("Set undo history size...");
 		JCheckBoxMenuItem mSmoothZoom = new JCheckBoxMenuItem("Enable smooth zoom");
+		JCheckBoxMenuItem mKineticPanning = new JCheckBoxMenuItem("Enable kinetic panning");
+		JCheckBoxMenuItem mStatistics = new JCheckBoxMenuItem("Show rendering statistics");
+		JMenuItem mExportStatistics = new JMenuItem("Export rendering statistics...");
+		JMenuItem mExportObjects = new JMenuItem("Export objects...");
+		JMenuItem mImportObjects = new JMenuItem("Import objects...");
+		JMenuItem mCompare = new JMenuItem("Compare with Rom...");
+		JMenuItem mExportComparison = new JMenuItem("Export comparison...");
+		JMenuItem mClearComparison = new JMenuItem("Clear comparison");
+		JMenuItem mLoadPalette = new JMenuItem("Load object colours...");
+		JMenuItem mResetPalette = new JMenuItem("Reset object colours");
+		JMenuItem mStagePalette = new JMenuItem("Edit stage palette...");
+		JCheckBoxMenuItem mIndexedImages = new JCheckBoxMenuItem("Store stage images as indexed colour");
+		JCheckBoxMenuItem mIncrementalSave = new JCheckBoxMenuItem("Save changed ranges only");
+		JCheckBoxMenuItem mVerifyChecksum = new JCheckBoxMenuItem("Verify checksum on save");
 		JMenuItem mExit = new JMenuItem("Exit");
 		
 		mOpen.addActionListener(e -> loadAction.run());
 		mSave.addActionListener(e -> saveAction.run());
 		mScale.addActionListener(e ->
 		{
-			StageDisplay sd = stageDisplayArr[mainTabPane.getSelectedIndex()];
+			StageDisplay sd = getSelectedStageDisplay();
+			if (sd == null)
+				return;
 			
 			double scale = sd.getScale();
 			double minScale = sd.getMinScale();
@@ -485,31 +651,423 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 				JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Invalid value: \"" + limitString(s, 50) + "\"", "Scale", JOptionPane.ERROR_MESSAGE);
 			}
 		});
+		mClusterScale.addActionListener(e ->
+		{
+			double clusterScale = prefs.getDouble("ClusterScaleThreshold", 0.5);
+			
+			String s = JOptionPane.showInputDialog("Enter the scale below which objects are clustered:", clusterScale);
+			if (s == null)
+				return;
+			
+			try
+			{
+				double newClusterScale = Double.parseDouble(s);
+				if (newClusterScale < 0)
+					newClusterScale = 0;
+				prefs.putDouble("ClusterScaleThreshold", newClusterScale);
+				for (StageDisplay sd: stageDisplayArr)
+				{
+					if (sd != null)
+						sd.setClusterScale(newClusterScale);
+				}
+			}
+			catch (Exception ex)
+			{
+				JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Invalid value: \"" + limitString(s, 50) + "\"", "Clustering threshold", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+		mImageCache.addActionListener(e ->
+		{
+			long cacheSize = prefs.getLong("StageImageCacheSize", 256);
+			
+			String s = JOptionPane.showInputDialog("Enter the stage image cache size in MiB:", cacheSize);
+			if (s == null)
+				return;
+			
+			try
+			{
+				long newCacheSize = Long.parseLong(s.trim());
+				if (newCacheSize < 0)
+					newCacheSize = 0;
+				prefs.putLong("StageImageCacheSize", newCacheSize);
+				imageCache.setMaxSize(newCacheSize * 1024 * 1024);
+			}
+			catch (Exception ex)
+			{
+				JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Invalid value: \"" + limitString(s, 50) + "\"", "Image cache size", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+		mDiskCache.addActionListener(e ->
+		{
+			long cacheSize = prefs.getLong("StageDiskCacheSize", 512);
+			
+			String s = JOptionPane.showInputDialog("Enter the decoded stage disk cache size in MiB:", cacheSize);
+			if (s == null)
+				return;
+			
+			try
+			{
+				long newCacheSize = Long.parseLong(s.trim());
+				if (newCacheSize < 0)
+					newCacheSize = 0;
+				prefs.putLong("StageDiskCacheSize", newCacheSize);
+				if (diskCache != null)
+					diskCache.setMaxSize(newCacheSize * 1024 * 1024);
+			}
+			catch (Exception ex)
+			{
+				JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Invalid value: \"" + limitString(s, 50) + "\"", "Disk cache size", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+		mUndoSize.addActionListener(e ->
+		{
+			long historySize = prefs.getLong("UndoHistorySize", 1024);
+			
+			String s = JOptionPane.showInputDialog("Enter the undo history size in KiB:", historySize);
+			if (s == null)
+				return;
+			
+			try
+			{
+				long newHistorySize = Long.parseLong(s.trim());
+				if (newHistorySize < 0)
+					newHistorySize = 0;
+				prefs.putLong("UndoHistorySize", newHistorySize);
+				history.setMaxSize(newHistorySize * 1024);
+			}
+			catch (Exception ex)
+			{
+				JOptionPane.showMessageDialog(MoonwalkerObjectEditorGUI.this, "Invalid value: \"" + limitString(s, 50) + "\"", "Undo history size", JOptionPane.ERROR_MESSAGE);
+			}
+		});
 		mSmoothZoom.addChangeListener(e ->
 		{
 			prefs.putBoolean("EnableSmoothZoom", mSmoothZoom.isSelected());
 		});
 		mSmoothZoom.setSelected(prefs.getBoolean("EnableSmoothZoom", true));
+		mKineticPanning.addChangeListener(e ->
+		{
+			prefs.putBoolean("EnableKineticPanning", mKineticPanning.isSelected());
+		});
+		mKineticPanning.setSelected(prefs.getBoolean("EnableKineticPanning", true));
+		mIndexedImages.addChangeListener(e ->
+		{
+			prefs.putBoolean("IndexedStageImages", mIndexedImages.isSelected());
+		});
+		mIndexedImages.setSelected(prefs.getBoolean("IndexedStageImages", true));
+		mIncrementalSave.addChangeListener(e ->
+		{
+			prefs.putBoolean("IncrementalSave", mIncrementalSave.isSelected());
+		});
+		mIncrementalSave.setSelected(prefs.getBoolean("IncrementalSave", true));
+		mVerifyChecksum.addChangeListener(e ->
+		{
+			prefs.putBoolean("VerifyChecksum", mVerifyChecksum.isSelected());
+		});
+		mVerifyChecksum.setSelected(prefs.getBoolean("VerifyChecksum", false));
+		mStatistics.setSelected(prefs.getBoolean("ShowRenderStatistics", false));
+		mStatistics.addActionListener(e ->
+		{
+			prefs.putBoolean("ShowRenderStatistics", mStatistics.isSelected());
+			for (StageDisplay sd: stageDisplayArr)
+			{
+				if (sd != null)
+					sd.setShowStatistics(mStatistics.isSelected());
+			}
+		});
+		mExportStatistics.addActionListener(e ->
+		{
+			StageDisplay sd = getSelectedStageDisplay();
+			if (sd == null)
+				return;
+			
+			if (statisticsDialog == null)
+			{
+				statisticsDialog = new JFileChooser(prefs.get("StatisticsDialogPath", ""));
+				statisticsDialog.setDialogTitle("Select a path for the statistics file");
+			}
+			if (statisticsDialog.showSaveDialog(this) == JFileChooser.APPROVE_OPTION)
+			{
+				File f = statisticsDialog.getSelectedFile();
+				prefs.put("StatisticsDialogPath", f.getParent());
+				try (Writer w = Files.newBufferedWriter(f.toPath()))
+				{
+					sd.getStatistics().writeCsv(w);
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+					CustomDialogs.showExceptionDialog(this, limitString("Unable to write statistics file. \nReason: "
+								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+								, 100),
+							"Error", ex);
+				}
+			}
+		});
+		mExportObjects.addActionListener(e ->
+		{
+			if (objectTableDialog == null)
+				objectTableDialog = new JFileChooser(prefs.get("ObjectTableDialogPath", ""));
+			objectTableDialog.setDialogTitle("Select a path for the object file (.mwo for binary, text otherwise)");
+			if (objectTableDialog.showSaveDialog(this) == JFileChooser.APPROVE_OPTION)
+			{
+				File f = objectTableDialog.getSelectedFile();
+				prefs.put("ObjectTableDialogPath", f.getParent());
+				try
+				{
+					ObjectTableWriter.writeAll(f.toPath(), mainObjectArr, f.getName().toLowerCase().endsWith(".mwo"));
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+					CustomDialogs.showExceptionDialog(this, limitString("Unable to write object file. \nReason: "
+								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+								, 100),
+							"Error", ex);
+				}
+			}
+		});
+		mImportObjects.addActionListener(e ->
+		{
+			if (objectTableDialog == null)
+				objectTableDialog = new JFileChooser(prefs.get("ObjectTableDialogPath", ""));
+			objectTableDialog.setDialogTitle("Select an object file to import");
+			if (objectTableDialog.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+				return;
+			
+			File f = objectTableDialog.getSelectedFile();
+			prefs.put("ObjectTableDialogPath", f.getParent());
+			@SuppressWarnings("unchecked")
+			ArrayList<MDirectObject>[] previous = new ArrayList[mainObjectArr.length];
+			for (int i = 0; i < previous.length; i++)
+				previous[i] = new ArrayList<>(mainObjectArr[i]);
+			try
+			{
+				ObjectTableReader.readAll(f.toPath(), mainObjectArr);
+			}
+			catch (Exception ex)
+			{
+				ex.printStackTrace();
+				CustomDialogs.showExceptionDialog(this, limitString("Unable to import object file. \nReason: "
+							+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+							, 100),
+						"Error", ex);
+				return;
+			}
+			
+			//the journal sees the import as replacing every object, so it can be recovered like any other edit
+			history.clear();
+			setComparison(null);
+			for (int i = 0; i < mainObjectArr.length; i++)
+			{
+				if (!isReplaced(previous[i], mainObjectArr[i]))
+					continue;
+				if (journal != null)
+				{
+					for (int j = previous[i].size() - 1; j >= 0; j--)
+						journal.objectRemoved(i, j, previous[i].get(j));
+					for (int j = 0; j < mainObjectArr[i].size(); j++)
+						journal.objectAdded(i, j, mainObjectArr[i].get(j));
+				}
+				//stages without a display keep their own flag until the next save serializes them
+				if (stageDisplayArr[i] != null)
+				{
+					stageDisplayArr[i].setObjects(mainObjectArr[i]);
+					stageDisplayArr[i].setModified(true);
+				}
+				else
+					unsavedStages[i] = true;
+			}
+			mainTabPane.repaint();
+		});
+		mCompare.addActionListener(e ->
+		{
+			if (compareDialog == null)
+			{
+				compareDialog = new JFileChooser(prefs.get("CompareDialogPath", prefs.get("OpenDialogPath", "")));
+				compareDialog.setDialogTitle("Select a Rom file to compare with");
+				compareDialog.setFileFilter(binFileFilter);
+				compareDialog.setAcceptAllFileFilterUsed(false);
+			}
+			if (compareDialog.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+				return;
+			
+			File f = compareDialog.getSelectedFile();
+			prefs.put("CompareDialogPath", f.getParent());
+			
+			//the current objects including unsaved edits are the "before" side, copied so later edits do not move the markers
+			MDirectObject[][] current = new MDirectObject[mainObjectArr.length][];
+			for (int i = 0; i < current.length; i++)
+			{
+				current[i] = new MDirectObject[mainObjectArr[i].size()];
+				for (int j = 0; j < current[i].length; j++)
+					current[i][j] = StageDisplay.copyObject(mainObjectArr[i].get(j));
+			}
+			int generation = ++comparisonGeneration;
+			ObjectDiff diff = new ObjectDiff(prefs.getInt("DiffMoveTolerance", 32), ForkJoinPool.commonPool());
+			
+			//loading and matching run off the edt and away from the decode pool, the result is dropped if the Rom changed meanwhile
+			Thread compareThread = new Thread(() ->
+			{
+				try
+				{
+					List<ObjectDiff.Change> changes = diff.compare(current, ObjectDiff.loadObjects(f.toPath()));
+					SwingUtilities.invokeLater(() ->
+					{
+						if (generation != comparisonGeneration)
+							return;
+						setComparison(changes);
+						
+						int[] counts = new int[ObjectDiff.Kind.values().length];
+						for (ObjectDiff.Change c: changes)
+							counts[c.getKind().ordinal()]++;
+						JOptionPane.showMessageDialog(this, changes.isEmpty()?"The objects are identical.":(changes.size() + " changes: "
+								+ counts[ObjectDiff.Kind.ADDED.ordinal()] + " added, " + counts[ObjectDiff.Kind.REMOVED.ordinal()] + " removed, "
+								+ counts[ObjectDiff.Kind.MOVED.ordinal()] + " moved, " + counts[ObjectDiff.Kind.MODIFIED.ordinal()] + " modified."),
+								"Compare with Rom", JOptionPane.INFORMATION_MESSAGE);
+					});
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+					SwingUtilities.invokeLater(() -> CustomDialogs.showExceptionDialog(this, limitString("Unable to compare Rom files. \nReason: "
+								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+								, 100),
+							"Error", ex));
+				}
+			}, "Rom compare");
+			compareThread.setDaemon(true);
+			compareThread.start();
+		});
+		mExportComparison.addActionListener(e ->
+		{
+			if (comparison == null)
+			{
+				JOptionPane.showMessageDialog(this, "No comparison to export.", "Error", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			if (diffDialog == null)
+			{
+				diffDialog = new JFileChooser(prefs.get("DiffDialogPath", ""));
+				diffDialog.setDialogTitle("Select a path for the comparison file");
+			}
+			if (diffDialog.showSaveDialog(this) == JFileChooser.APPROVE_OPTION)
+			{
+				File f = diffDialog.getSelectedFile();
+				prefs.put("DiffDialogPath", f.getParent());
+				try (Writer w = Files.newBufferedWriter(f.toPath()))
+				{
+					ObjectDiff.write(w, comparison);
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+					CustomDialogs.showExceptionDialog(this, limitString("Unable to write comparison file. \nReason: "
+								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+								, 100),
+							"Error", ex);
+				}
+			}
+		});
+		mClearComparison.addActionListener(e -> setComparison(null));
+		mLoadPalette.addActionListener(e ->
+		{
+			if (paletteDialog == null)
+			{
+				paletteDialog = new JFileChooser(prefs.get("ObjectPalettePath", ""));
+				paletteDialog.setDialogTitle("Select an object colour file");
+			}
+			if (paletteDialog.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
+			{
+				File f = paletteDialog.getSelectedFile();
+				try (InputStream in = new FileInputStream(f))
+				{
+					setObjectPalette(ObjectPalette.load(in));
+					prefs.put("ObjectPalettePath", f.getAbsolutePath());
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+					CustomDialogs.showExceptionDialog(this, limitString("Unable to load object colours. \nReason: "
+								+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+								, 100),
+							"Error", ex);
+				}
+			}
+		});
+		mResetPalette.addActionListener(e ->
+		{
+			try
+			{
+				setObjectPalette(ObjectPalette.loadDefault());
+				prefs.remove("ObjectPalettePath");
+			}
+			catch (Exception ex)
+			{
+				ex.printStackTrace();
+				CustomDialogs.showExceptionDialog(this, limitString("Unable to load object colours. \nReason: "
+							+ ex.getMessage() + " (" + ex.getClass().getTypeName() + ")"
+							, 100),
+						"Error", ex);
+			}
+		});
+		mStagePalette.addActionListener(e ->
+		{
+			StageDisplay stageDisp = getSelectedStageDisplay();
+			if ((stageDisp == null) || (stageDisp.getImagePalette() == null))
+			{
+				JOptionPane.showMessageDialog(this, "The selected stage has no indexed image.", "Stage palette", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			showStagePaletteDialog(stageDisp);
+		});
 		mExit.addActionListener(e ->
 		{
-			dispose();
+			//same path as closing the window, so a running save finishes and the journal is flushed
+			dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
 		});
 		
 		mFile.add(mOpen);
 		mFile.add(mSave);
+		mFile.add(mIncrementalSave);
+		mFile.add(mVerifyChecksum);
 		mFile.addSeparator();
 		mFile.add(mScale);
+		mFile.add(mClusterScale);
+		mFile.add(mImageCache);
+		mFile.add(mDiskCache);
+		mFile.add(mUndoSize);
 		mFile.addSeparator();
 		mFile.add(mSmoothZoom);
+		mFile.add(mKineticPanning);
+		mFile.add(mIndexedImages);
+		mFile.add(mStatistics);
+		mFile.add(mExportStatistics);
+		mFile.addSeparator();
+		mFile.add(mExportObjects);
+		mFile.add(mImportObjects);
+		mFile.add(mCompare);
+		mFile.add(mExportComparison);
+		mFile.add(mClearComparison);
+		mFile.addSeparator();
+		mFile.add(mLoadPalette);
+		mFile.add(mResetPalette);
+		mFile.add(mStagePalette);
 		mFile.addSeparator();
 		mFile.add(mExit);
 		
 		JMenu mEdit = new JMenu("Edit");
 		
+		JMenuItem mUndo = new JMenuItem("Undo");
+		JMenuItem mRedo = new JMenuItem("Redo");
 		JMenuItem mAdd = new JMenuItem("Add...");
 		JMenuItem mEditItem = new JMenuItem("Edit...");
 		JMenuItem mRemove = new JMenuItem("Remove");
 		
+		mUndo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+		mUndo.addActionListener(e -> undoAction.run());
+		mRedo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+		mRedo.addActionListener(e -> redoAction.run());
 		mAdd.addActionListener(e -> addAction.run());
 		mEditItem.addActionListener(e -> editAction.run());
 		mRemove.addActionListener(e ->
@@ -527,9 +1085,34 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 				JOptionPane.showMessageDialog(this, "No object selected.", "Error", JOptionPane.ERROR_MESSAGE);
 		});
 		
+		mEdit.add(mUndo);
+		mEdit.add(mRedo);
+		mEdit.addSeparator();
 		mEdit.add(mAdd);
 		mEdit.add(mEditItem);
 		mEdit.add(mRemove);
+		mEdit.addMenuListener(new MenuListener()
+		{
+			@Override
+			public void menuSelected(MenuEvent e)
+			{
+				int ind = mainTabPane.getSelectedIndex();
+				mUndo.setEnabled((ind >= 0) && history.canUndo(ind));
+				mRedo.setEnabled((ind >= 0) && history.canRedo(ind));
+			}
+			@Override
+			public void menuDeselected(MenuEvent e)
+			{
+				//the accelerators have to work while the menu is closed
+				mUndo.setEnabled(true);
+				mRedo.setEnabled(true);
+			}
+			@Override
+			public void menuCanceled(MenuEvent e)
+			{
+				menuDeselected(e);
+			}
+		});
 		
 		JMenu mHelp = new JMenu("Help");
 		
@@ -571,35 +1154,407 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 		tabPaneInputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_E, InputEvent.CTRL_DOWN_MASK), "editMoonwalkerObjectAction");
 		tabPaneActionMap.put("editMoonwalkerObjectAction", lambdaToAction(e -> editAction.run()));
 		
-		//TODO implement undo/redo functionality
-//		tabPaneInputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), "undoAction");
-//		tabPaneActionMap.put("editMoonwalkerObjectAction", lambdaToAction(e -> 
-//		{
-//			int ind = tabPane.getSelectedIndex();
-//			if (ind < 0)
-//				return;
-//			
-//			UndoManager undoMan = undoManArr[ind];
-//			if (undoMan.canUndo())
-//				undoMan.undo();
-//		}));
-//		
-//		tabPaneInputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), "redoAction");
-//		tabPaneActionMap.put("editMoonwalkerObjectAction", lambdaToAction(e -> 
-//		{
-//			int ind = tabPane.getSelectedIndex();
-//			if (ind < 0)
-//				return;
-//			
-//			UndoManager undoMan = undoManArr[ind];
-//			if (undoMan.canRedo())
-//				undoMan.redo();
-//		}));
+		mainTabPane.addChangeListener(e ->
+		{
+			//the previously selected stage is no longer pinned and may be over the budget
+			imageCache.trim();
+			requestStage(mainTabPane.getSelectedIndex());
+		});
+		requestStage(mainTabPane.getSelectedIndex());
 		
 		revalidate();
 		repaint();
 	}
+	private void requestStage(int ind)
+	{
+		if ((ind < 0) || (ind >= stageDisplayArr.length))
+			return;
+		
+		BufferedImage cached = imageCache.get(ind);
+		if ((cached != null) && !staleStages[ind])
+		{
+			showStage(ind, cached);
+			return;
+		}
+		if (pendingStages[ind])
+			return;
+		
+		pendingStages[ind] = true;
+		pendingStageCount++;
+		updateDecodeProgress();
+		
+		//decoding reads the content of the rom buffer, a save only changes the object tables in it
+		byte[] romContent = romBuffer.getContent();
+		MoonwalkerMetadata metadata = meta;
+		int generation = stageGeneration;
+		StageDiskCache cache = diskCache;
+		String cacheKey = stageCacheKey;
+		boolean indexed = prefs.getBoolean("IndexedStageImages", true);
+		decodePool.execute(() ->
+		{
+			Supplier<BufferedImage> decoder = () ->
+			{
+				try
+				{
+					MoonwalkerPalette pal = MoonwalkerIO.loadPalette(romContent, ind, metadata);
+					return MoonwalkerIO.loadMainStageArea(romContent, ind, metadata).createLayerA(pal, false);
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+					return null;
+				}
+			};
+			BufferedImage img = (cache == null)?decoder.get():cache.getOrDecode(cacheKey, ind, decoder);
+			
+			long fingerprint = (img == null)?0:fingerprintImage(img);
+			BufferedImage decoded = (img == null)?null:prepareStageImage(img, indexed);
+			SwingUtilities.invokeLater(() ->
+			{
+				if (generation != stageGeneration)
+					return;
+				
+				pendingStages[ind] = false;
+				pendingStageCount--;
+				updateDecodeProgress();
+				
+				BufferedImage image = decoded;
+				BufferedImage previous = imageCache.get(ind);
+				if (staleStages[ind] && (image != null) && (previous != null) && (fingerprint == stageFingerprints[ind]))
+					image = previous;
+				staleStages[ind] = false;
+				stageFingerprints[ind] = fingerprint;
+				
+				//a stage nobody looks at is only prefetched, it must not push a viewed stage out of the cache
+				StageDisplay sd = stageDisplayArr[ind];
+				boolean shown = (ind == mainTabPane.getSelectedIndex()) || ((sd != null) && (sd.getImage() != null));
+				if (image == null)
+					showStage(ind, null);
+				else if (shown)
+				{
+					imageCache.put(ind, image);
+					showStage(ind, image);
+					prefetchStages(ind, StageImageCache.imageBytes(image));
+				}
+				else if (imageCache.fits(StageImageCache.imageBytes(image)))
+					imageCache.put(ind, image);
+			});
+		});
+	}
+	private void prefetchStages(int from, long estimate)
+	{
+		//the other stages are decoded in tab order while the image cache has room for them
+		long room = imageCache.getMaxSize() - imageCache.getSize() - pendingStageCount * estimate;
+		for (int i = 1; (i < stageDisplayArr.length) && (room >= estimate); i++)
+		{
+			int ind = (from + i) % stageDisplayArr.length;
+			if (imageCache.contains(ind) || pendingStages[ind])
+				continue;
+			room -= estimate;
+			requestStage(ind);
+		}
+	}
+	private static boolean hasSameStageData(byte[] oldRom, byte[] newRom, MDirectObject[][] objArr, MoonwalkerMetadata metadata)
+	{
+		//the stage graphics are untouched if writing the new object tables into the old rom reproduces the new rom
+		if ((oldRom == null) || (oldRom.length != newRom.length))
+			return false;
+		
+		try
+		{
+			byte[] rebuilt = Arrays.copyOf(oldRom, oldRom.length);
+			MoonwalkerIO.saveMainObjectArray(rebuilt, objArr, metadata);
+			MoonwalkerIO.fixChecksum(rebuilt);
+			return Arrays.equals(rebuilt, newRom);
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+	private static long fingerprintImage(BufferedImage img)
+	{
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int[] row = new int[width];
+		long h = ((long) width << 32) | height;
+		for (int y = 0; y < height; y++)
+		{
+			img.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++)
+			{
+				h = (h ^ row[x]) * 0x100000001B3L;
+				h ^= h >>> 29;
+			}
+		}
+		return (h == 0)?1:h;
+	}
+	private void openJournal(Path romPath, byte[] romContent)
+	{
+		closeJournal();
+		unsavedStages = new boolean[mainObjectArr.length];
+		try
+		{
+			journal = EditJournal.open(EditJournal.fileFor(EditJournal.getDefaultDirectory(), romPath), romContent,
+					prefs.getLong("JournalFlushInterval", 1000));
+			int count = journal.getRecordCount();
+			if (count <= 0)
+				return;
+			
+			if (JOptionPane.showConfirmDialog(this,
+					"Found " + count + " unsaved " + ((count == 1)?"edit":"edits") + " from a previous session of this Rom. Do you want to restore them?",
+					"Moonwalker Object Editor",
+					JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION)
+			{
+				journal.replay(mainObjectArr);
+				Arrays.fill(unsavedStages, true);
+			}
+			else
+				journal.reset(romContent);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			journal = null;
+		}
+	}
+	private static boolean isReplaced(List<MDirectObject> previous, List<MDirectObject> current)
+	{
+		if (previous.size() != current.size())
+			return true;
+		for (int i = 0; i < previous.size(); i++)
+		{
+			if (previous.get(i) != current.get(i))
+				return true;
+		}
+		return false;
+	}
+	private void closeJournal()
+	{
+		if (journal == null)
+			return;
+		try
+		{
+			journal.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		journal = null;
+	}
+	private StageEditListener createEditListener(int stage)
+	{
+		return new StageEditListener()
+		{
+			@Override
+			public void objectAdded(int index, MDirectObject obj)
+			{
+				if (journal != null)
+					journal.objectAdded(stage, index, obj);
+				history.record(stage, EditHistory.Delta.added(index, obj));
+			}
+			@Override
+			public void objectRemoved(int index, MDirectObject obj)
+			{
+				if (journal != null)
+					journal.objectRemoved(stage, index, obj);
+				history.record(stage, EditHistory.Delta.removed(index, obj));
+			}
+			@Override
+			public void objectMoved(int index, MDirectObject obj, int prevX, int prevY)
+			{
+				if (journal != null)
+					journal.objectMoved(stage, index, obj, prevX, prevY);
+				history.recordDrag(stage, index, prevX, prevY, obj.getAbsoluteX(), obj.getAbsoluteY());
+			}
+			@Override
+			public void dragFinished(int index, MDirectObject obj)
+			{
+				history.endDrag(stage);
+			}
+			@Override
+			public void objectEdited(int index, MDirectObject obj, MDirectObject previous)
+			{
+				if (journal != null)
+					journal.objectEdited(stage, index, previous, obj);
+				ArrayList<EditHistory.Delta> deltas = new ArrayList<>();
+				EditHistory.Delta.edited(deltas, index, previous, obj);
+				history.record(stage, deltas.toArray(new EditHistory.Delta[deltas.size()]));
+			}
+		};
+	}
+	private void shutdown()
+	{
+		closeJournal();
+		dispose();
+		System.exit(0);
+	}
+	private void updateSaveProgress()
+	{
+		boolean busy = savePipeline.isBusy();
+		saveProgress.setVisible(busy);
+		bCancelSave.setVisible(busy);
+	}
+	private void updateDecodeProgress()
+	{
+		decodeProgress.setString("Decoding " + pendingStageCount + ((pendingStageCount == 1)?" stage":" stages"));
+		decodeProgress.setVisible(pendingStageCount > 0);
+	}
+	private void evictStage(int ind)
+	{
+		StageDisplay sd = stageDisplayArr[ind];
+		if (sd != null)
+			sd.setImage(null);
+	}
+	private void showStage(int ind, BufferedImage img)
+	{
+		StageDisplay sd = stageDisplayArr[ind];
+		if (img == null)
+		{
+			stageDisplayArr[ind] = null;
+			mainTabPane.setComponentAt(ind, createMessagePanel("[No map image found.]", Color.RED));
+		}
+		else if (sd == null)
+			installStage(ind, img);
+		else if (sd.getImage() != img)
+			sd.setImage(img);
+	}
+	private void installStage(int ind, BufferedImage img)
+	{
+		if (img == null)
+		{
+			mainTabPane.setComponentAt(ind, createMessagePanel("[No map image found.]", Color.RED));
+			return;
+		}
+		
+		StageDisplay stageDisplay = new StageDisplay(mainObjectArr[ind], meta, img, markerAtlas, prefs);
+		stageDisplay.setEditListener(createEditListener(ind));
+		stageDisplay.setDiff(getComparison(ind));
+		stageDisplayArr[ind] = stageDisplay;
+		
+		JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, true,
+				stageDisplay.getImagePanel(), stageDisplay.getDescriptionPanel());
+		splitPane.setResizeWeight(1);
+		
+		mainTabPane.setComponentAt(ind, splitPane);
+		
+		ChangeListener chL = new ChangeListener()
+		{
+			@Override
+			public void stateChanged(ChangeEvent e)
+			{
+				if (mainTabPane.getSelectedIndex() == ind)
+				{
+					splitPane.setDividerLocation(splitPane.getSize().width - 200);
+					mainTabPane.removeChangeListener(this);
+				}
+			}
+		};
+		mainTabPane.addChangeListener(chL);
+		SwingUtilities.invokeLater(() ->
+		{
+			splitPane.setDividerLocation(splitPane.getSize().width - 200);
+		});
+	}
+	private void setComparison(List<ObjectDiff.Change> changes)
+	{
+		comparisonGeneration++;
+		comparison = changes;
+		for (int i = 0; i < stageDisplayArr.length; i++)
+		{
+			if (stageDisplayArr[i] != null)
+				stageDisplayArr[i].setDiff(getComparison(i));
+		}
+	}
+	private List<ObjectDiff.Change> getComparison(int stage)
+	{
+		if (comparison == null)
+			return null;
+		ArrayList<ObjectDiff.Change> ret = new ArrayList<>();
+		for (ObjectDiff.Change c: comparison)
+		{
+			if (c.getStage() == stage)
+				ret.add(c);
+		}
+		return ret;
+	}
+	private StageDisplay getSelectedStageDisplay()
+	{
+		int ind = mainTabPane.getSelectedIndex();
+		if ((ind < 0) || (ind >= stageDisplayArr.length))
+			return null;
+		return stageDisplayArr[ind];
+	}
 	
+	private ObjectPalette loadObjectPalette() throws IOException
+	{
+		String path = prefs.get("ObjectPalettePath", null);
+		if (path != null)
+		{
+			try (InputStream in = new FileInputStream(path))
+			{
+				return ObjectPalette.load(in);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				prefs.remove("ObjectPalettePath");
+			}
+		}
+		return ObjectPalette.loadDefault();
+	}
+	private void setObjectPalette(ObjectPalette palette)
+	{
+		objectPalette = palette;
+		markerAtlas = new MarkerAtlas(palette);
+		for (StageDisplay sd: stageDisplayArr)
+		{
+			if (sd != null)
+				sd.setMarkerAtlas(markerAtlas);
+		}
+	}
+	private void showStagePaletteDialog(StageDisplay stageDisp)
+	{
+		int[] palette = stageDisp.getImagePalette();
+		JPanel swatchPanel = new JPanel(new GridLayout(0, 16, 2, 2));
+		for (int i = 0; i < palette.length; i++)
+		{
+			int ind = i;
+			JButton bSwatch = new JButton();
+			bSwatch.setPreferredSize(new Dimension(20, 20));
+			bSwatch.setBackground(new Color(palette[i], true));
+			bSwatch.setToolTipText(String.format("%d: #%08X", i, palette[i]));
+			bSwatch.addActionListener(e ->
+			{
+				Color c = JColorChooser.showDialog(this, "Colour " + ind, new Color(palette[ind], true));
+				if (c == null)
+					return;
+				
+				palette[ind] = c.getRGB();
+				bSwatch.setBackground(c);
+				bSwatch.setToolTipText(String.format("%d: #%08X", ind, palette[ind]));
+				stageDisp.setImagePalette(palette);
+			});
+			swatchPanel.add(bSwatch);
+		}
+		
+		int result = JOptionPane.showOptionDialog(this, swatchPanel, "Stage palette", JOptionPane.DEFAULT_OPTION,
+				JOptionPane.PLAIN_MESSAGE, null, new String[] {"Close", "Reset"}, "Close");
+		if (result == 1)
+			stageDisp.setImagePalette(null);
+	}
+	private BufferedImage prepareStageImage(BufferedImage src, boolean indexed)
+	{
+		//indexed images take a byte per pixel and can have their palette swapped
+		if (indexed)
+		{
+			BufferedImage ret = IndexedImages.toIndexed(src);
+			if (ret != null)
+				return ret;
+		}
+		return optimizeImage(src);
+	}
 	private BufferedImage optimizeImage(BufferedImage src)
 	{
 		try
@@ -624,6 +1579,14 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 			return src;
 		}
 	}
+	private static JPanel createMessagePanel(String message, Color color)
+	{
+		JPanel panel = new JPanel();
+		JLabel label = new JLabel(message);
+		label.setForeground(color);
+		panel.add(label);
+		return panel;
+	}
 	private static JSeparator createSeparator(int width, int height, int orientation)
 	{
 		JSeparator sep = new JSeparator(orientation);
@@ -642,13 +1605,6 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 			}
 		};
 	}
-	private static MDirectObject[][] deepToArray(ArrayList<MDirectObject>[] listArr)
-	{
-		MDirectObject[][] ret = new MDirectObject[listArr.length][];
-		for (int i = 0; i < ret.length; i++)
-			ret[i] = listArr[i].toArray(l -> new MDirectObject[l]);
-		return ret;
-	}
 	private JPanel createRomVersionPanel()
 	{
 		//TODO add parameter of type List<..., Supplier<Boolean>> for button state access
@@ -684,113 +1640,16 @@ public class MoonwalkerObjectEditorGUI extends JFrame
 		return dialogPanel;
 	}
 	
-	private void fillMaps(HashMap<Integer, Color> outlineColorMap, HashMap<Integer, Color> fillColorMap)
-	{
-		//TODO find a better way to init hashmaps, then refactor
-		
-		outlineColorMap.put(0x0001, new Color(255, 255, 255));
-		outlineColorMap.put(0x0002, new Color(128, 128, 128));
-		outlineColorMap.put(0x0004, new Color(255, 255, 255));
-		outlineColorMap.put(0x0005, new Color(160, 0, 0));
-		outlineColorMap.put(0x000C, new Color(255, 0, 0));
-		outlineColorMap.put(0x000D, new Color(150, 0, 200));
-		outlineColorMap.put(0x000E, new Color(255, 128, 0));
-		
-		outlineColorMap.put(0x0014, new Color(0, 255, 0));
-		outlineColorMap.put(0x0015, new Color(255, 0, 255));
-		
-		outlineColorMap.put(0x0016, new Color(64, 64, 222));
-		outlineColorMap.put(0x0017, new Color(128, 128, 222));
-		outlineColorMap.put(0x0018, new Color(224, 224, 0));				
-		outlineColorMap.put(0x0019, new Color(255, 0, 0));
-		outlineColorMap.put(0x001B, new Color(64, 64, 64));
-		outlineColorMap.put(0x001C, new Color(255, 0, 255));
-		outlineColorMap.put(0x001E, new Color(200, 64, 16));
-		outlineColorMap.put(0x001F, new Color(255, 255, 255));
-		outlineColorMap.put(0x0020, new Color(158, 255, 250));
-		outlineColorMap.put(0x0021, new Color(20, 224, 163));
-		outlineColorMap.put(0x0023, new Color(47, 163, 51));
-		outlineColorMap.put(0x0024, new Color(72, 72, 72));
-		outlineColorMap.put(0x0025, new Color(170, 255, 0));
-		outlineColorMap.put(0x0026, new Color(207, 187, 104));
-		outlineColorMap.put(0x0029, new Color(162, 207, 14));
-		outlineColorMap.put(0x002A, new Color(140, 220, 255));
-		outlineColorMap.put(0x002D, new Color(16, 224, 16));
-		outlineColorMap.put(0x002E, new Color(224, 186, 164));
-		outlineColorMap.put(0x002F, new Color(255, 0, 200));
-		outlineColorMap.put(0x0030, new Color(210, 194, 24));
-		outlineColorMap.put(0x0034, new Color(255, 175, 10));
-		outlineColorMap.put(0x0035, new Color(160, 32, 160));
-		outlineColorMap.put(0x0036, new Color(150, 190, 210));
-		outlineColorMap.put(0x0037, new Color(250, 106, 40));
-		outlineColorMap.put(0x0049, new Color(194, 0, 0));
-		outlineColorMap.put(0x004C, new Color(234, 212, 0));
-		outlineColorMap.put(0x0050, new Color(0, 0, 255));
-		outlineColorMap.put(0x0055, new Color(0, 255, 0));
-		outlineColorMap.put(0x0057, new Color(64, 224, 255));
-		outlineColorMap.put(0x0059, new Color(36, 72, 255));
-		outlineColorMap.put(0x005A, new Color(128, 128, 128));
-		outlineColorMap.put(0x005B, new Color(58, 96, 255));
-		outlineColorMap.put(0x005D, new Color(160, 80, 48));
-		outlineColorMap.put(0x005F, new Color(0, 128, 64));
-		outlineColorMap.put(0x0060, new Color(16, 164, 96));
-		outlineColorMap.put(0x0061, new Color(128, 0, 64));
-		outlineColorMap.put(0x0062, new Color(255, 255, 0));
-		outlineColorMap.put(0x0065, new Color(112, 0, 0));
-		outlineColorMap.put(0x007D, new Color(255, 0, 0));
-		
-		//----------------
-		
-		fillColorMap.put(0x0001, new Color(255, 0, 0, 128));
-		fillColorMap.put(0x0002, new Color(128, 128, 128, 128));
-		fillColorMap.put(0x0004, new Color(128, 128, 128, 128));
-		fillColorMap.put(0x0005, new Color(192, 192, 0, 152));
-		fillColorMap.put(0x000C, new Color(255, 255, 0, 128));
-		fillColorMap.put(0x000D, new Color(150, 0, 200, 128));
-		fillColorMap.put(0x000E, new Color(255, 128, 0, 128));
-		
-		fillColorMap.put(0x0014, new Color(255, 255, 255, 128));
-		fillColorMap.put(0x0015, new Color(255, 255, 255, 128));
-		
-		fillColorMap.put(0x0016, new Color(64, 64, 222, 128));
-		fillColorMap.put(0x0017, new Color(80, 255, 110, 128));
-		fillColorMap.put(0x0018, new Color(200, 64, 16, 128));				
-		fillColorMap.put(0x0019, new Color(255, 0, 0, 128));
-		fillColorMap.put(0x001B, new Color(121, 121, 148, 128));
-		fillColorMap.put(0x001C, new Color(0, 0, 255, 128));
-		fillColorMap.put(0x001E, new Color(255, 255, 0, 196));
-		fillColorMap.put(0x001F, new Color(255, 255, 128, 128));
-		fillColorMap.put(0x0020, new Color(133, 222, 242, 128));
-		fillColorMap.put(0x0021, new Color(136, 20, 224, 128));
-		fillColorMap.put(0x0023, new Color(180, 20, 60, 160));
-		fillColorMap.put(0x0024, new Color(150, 190, 210, 196));
-		fillColorMap.put(0x0025, new Color(128, 255, 128, 128));
-		fillColorMap.put(0x0026, new Color(33, 0, 107, 128));
-		fillColorMap.put(0x0029, new Color(255, 95, 10, 160));
-		fillColorMap.put(0x002A, new Color(64, 64, 164, 128));
-		fillColorMap.put(0x002D, new Color(32, 196, 96, 128));
-		fillColorMap.put(0x002E, new Color(200, 64, 16, 128));
-		fillColorMap.put(0x002F, new Color(209, 202, 59, 128));
-		fillColorMap.put(0x0030, new Color(240, 224, 16, 128));
-		fillColorMap.put(0x0034, new Color(162, 207, 14, 160));
-		fillColorMap.put(0x0035, new Color(128, 128, 128, 128));
-		fillColorMap.put(0x0036, new Color(160, 32, 160, 128));
-		fillColorMap.put(0x0037, new Color(250, 106, 40, 128));
-		fillColorMap.put(0x0049, new Color(255, 255, 128, 128));
-		fillColorMap.put(0x004C, new Color(237, 7, 255, 192));
-		fillColorMap.put(0x0050, new Color(0, 0, 255, 128));
-		fillColorMap.put(0x0055, new Color(0, 255, 0, 128));
-		fillColorMap.put(0x0057, new Color(64, 224, 255, 128));
-		fillColorMap.put(0x0059, new Color(64, 96, 224, 128));
-		fillColorMap.put(0x005A, new Color(0, 0, 255, 128));
-		fillColorMap.put(0x005B, new Color(49, 102, 236, 128));
-		fillColorMap.put(0x005D, new Color(0, 0, 0, 128));
-		fillColorMap.put(0x005F, new Color(232, 210, 128, 128));
-		fillColorMap.put(0x0060, new Color(200, 196, 64, 128));
-		fillColorMap.put(0x0061, new Color(128, 0, 64, 128));
-		fillColorMap.put(0x0062, new Color(255, 255, 0, 128));
-		fillColorMap.put(0x0065, new Color(72, 64, 64, 144));
-		fillColorMap.put(0x007D, new Color(0, 255, 255, 128));
+	private static boolean isSameFile(Path a, File b)
+	{
+		try
+		{
+			return (b != null) && Files.isSameFile(a, b.toPath());
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
 	}
 	private static String limitString(String s, int limit)
 	{
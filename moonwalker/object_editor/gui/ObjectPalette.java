@@ -0,0 +1,146 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+class ObjectPalette
+{
+	private final static String defaultResource = "object_colors.properties";
+	private final static int typeCount = 0x10000;
+	
+	private final int[] outlineArgb, fillArgb;
+	private final Color[] outlineColors, fillColors;
+	private final Color defaultOutline, defaultFill;
+	private final boolean[] defined;
+	private final int definedLength;
+	
+	private ObjectPalette(Properties props) throws IOException
+	{
+		outlineArgb = new int[typeCount];
+		fillArgb = new int[typeCount];
+		outlineColors = new Color[typeCount];
+		fillColors = new Color[typeCount];
+		defined = new boolean[typeCount];
+		
+		defaultOutline = parseColor(props, "outline.default", Color.RED);
+		defaultFill = parseColor(props, "fill.default", Color.BLACK);
+		Arrays.fill(outlineColors, defaultOutline);
+		Arrays.fill(fillColors, defaultFill);
+		Arrays.fill(outlineArgb, defaultOutline.getRGB());
+		Arrays.fill(fillArgb, defaultFill.getRGB());
+		
+		int maxType = -1;
+		for (String key: props.stringPropertyNames())
+		{
+			int dot = key.indexOf('.');
+			if ((dot < 0) || key.endsWith(".default"))
+				continue;
+			
+			String kind = key.substring(0, dot);
+			int type;
+			try
+			{
+				type = Integer.parseInt(key.substring(dot + 1).trim(), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid object type in key \"" + key + "\"", e);
+			}
+			if ((type < 0) || (type >= typeCount))
+				throw new IOException("Object type out of range in key \"" + key + "\"");
+			
+			Color c = parseColor(props, key, null);
+			if (kind.equals("outline"))
+			{
+				outlineColors[type] = c;
+				outlineArgb[type] = c.getRGB();
+			}
+			else if (kind.equals("fill"))
+			{
+				fillColors[type] = c;
+				fillArgb[type] = c.getRGB();
+			}
+			else
+				throw new IOException("Unknown colour kind in key \"" + key + "\"");
+			
+			defined[type] = true;
+			maxType = Math.max(maxType, type);
+		}
+		definedLength = maxType + 1;
+	}
+	
+	public static ObjectPalette load(InputStream in) throws IOException
+	{
+		Properties props = new Properties();
+		props.load(in);
+		return new ObjectPalette(props);
+	}
+	public static ObjectPalette loadDefault() throws IOException
+	{
+		try (InputStream in = ObjectPalette.class.getResourceAsStream(defaultResource))
+		{
+			if (in == null)
+				throw new IOException("Missing resource " + defaultResource);
+			return load(in);
+		}
+	}
+	
+	private static Color parseColor(Properties props, String key, Color def) throws IOException
+	{
+		String value = props.getProperty(key);
+		if (value == null)
+			return def;
+		
+		String[] parts = value.split(",");
+		if ((parts.length < 3) || (parts.length > 4))
+			throw new IOException("Invalid colour \"" + value + "\" for key \"" + key + "\"");
+		try
+		{
+			int r = Integer.parseInt(parts[0].trim());
+			int g = Integer.parseInt(parts[1].trim());
+			int b = Integer.parseInt(parts[2].trim());
+			int a = (parts.length == 4)?Integer.parseInt(parts[3].trim()):255;
+			return new Color(r, g, b, a);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("Invalid colour \"" + value + "\" for key \"" + key + "\"", e);
+		}
+	}
+	
+	public Color getOutline(int type)
+	{
+		return outlineColors[type];
+	}
+	public Color getFill(int type)
+	{
+		return fillColors[type];
+	}
+	public int getOutlineArgb(int type)
+	{
+		return outlineArgb[type];
+	}
+	public int getFillArgb(int type)
+	{
+		return fillArgb[type];
+	}
+	public Color getDefaultOutline()
+	{
+		return defaultOutline;
+	}
+	public Color getDefaultFill()
+	{
+		return defaultFill;
+	}
+	public boolean isDefined(int type)
+	{
+		return defined[type];
+	}
+	public int getDefinedLength()
+	{
+		return definedLength;
+	}
+}
@@ -0,0 +1,173 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.swing.JComponent;
+
+class RenderStatistics
+{
+	private final static int frameCapacity = 1000;
+	private final static Color backgroundColor = new Color(0, 0, 0, 160);
+	private final static Color textColor = Color.WHITE;
+	private final static Font overlayFont = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+	
+	private final long[] timestamps;
+	private final long[] frameTimes;
+	private final int[] objectsDrawn;
+	private final int[] objectsCulled;
+	private final int[] objectsFiltered;
+	private final int[] tilesDrawn;
+	private final long[] allocatedBytes;
+	private final long[] sortBuffer;
+	private int frameCount;
+	private long totalFrames;
+	
+	private final com.sun.management.ThreadMXBean threadBean;
+	private long frameStart, frameStartAllocation;
+	private int currentObjectsDrawn, currentObjectsCulled, currentObjectsFiltered, currentTilesDrawn;
+	
+	public RenderStatistics()
+	{
+		timestamps = new long[frameCapacity];
+		frameTimes = new long[frameCapacity];
+		objectsDrawn = new int[frameCapacity];
+		objectsCulled = new int[frameCapacity];
+		objectsFiltered = new int[frameCapacity];
+		tilesDrawn = new int[frameCapacity];
+		allocatedBytes = new long[frameCapacity];
+		sortBuffer = new long[frameCapacity];
+		
+		com.sun.management.ThreadMXBean bean = null;
+		try
+		{
+			java.lang.management.ThreadMXBean tBean = ManagementFactory.getThreadMXBean();
+			if ((tBean instanceof com.sun.management.ThreadMXBean)
+					&& ((com.sun.management.ThreadMXBean) tBean).isThreadAllocatedMemorySupported())
+			{
+				bean = (com.sun.management.ThreadMXBean) tBean;
+				bean.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+		catch (Throwable t)
+		{
+			bean = null;
+		}
+		threadBean = bean;
+	}
+	
+	public void beginFrame()
+	{
+		currentObjectsDrawn = 0;
+		currentObjectsCulled = 0;
+		currentObjectsFiltered = 0;
+		currentTilesDrawn = 0;
+		frameStartAllocation = allocatedBytes();
+		frameStart = System.nanoTime();
+	}
+	public void addObjects(int drawn, int culled, int filtered)
+	{
+		currentObjectsDrawn += drawn;
+		currentObjectsCulled += culled;
+		currentObjectsFiltered += filtered;
+	}
+	public void addTiles(int tiles)
+	{
+		currentTilesDrawn += tiles;
+	}
+	public void endFrame()
+	{
+		long frameTime = System.nanoTime() - frameStart;
+		long allocated = allocatedBytes() - frameStartAllocation;
+		
+		int i = (int) (totalFrames % frameCapacity);
+		timestamps[i] = System.currentTimeMillis();
+		frameTimes[i] = frameTime;
+		objectsDrawn[i] = currentObjectsDrawn;
+		objectsCulled[i] = currentObjectsCulled;
+		objectsFiltered[i] = currentObjectsFiltered;
+		tilesDrawn[i] = currentTilesDrawn;
+		allocatedBytes[i] = (threadBean == null)?-1:allocated;
+		
+		totalFrames++;
+		if (frameCount < frameCapacity)
+			frameCount++;
+	}
+	private long allocatedBytes()
+	{
+		return (threadBean == null)?0:threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	public long getFrameTimePercentile(double percentile)
+	{
+		if (frameCount == 0)
+			return 0;
+		
+		System.arraycopy(frameTimes, 0, sortBuffer, 0, frameCount);
+		Arrays.sort(sortBuffer, 0, frameCount);
+		int index = (int) Math.ceil(percentile / 100 * frameCount) - 1;
+		return sortBuffer[Math.max(0, Math.min(frameCount - 1, index))];
+	}
+	
+	public Rectangle getOverlayBounds(JComponent c)
+	{
+		return getOverlayBounds(c.getFontMetrics(overlayFont));
+	}
+	private Rectangle getOverlayBounds(FontMetrics fm)
+	{
+		int lineHeight = fm.getHeight();
+		int width = Math.max(fm.stringWidth("Frame: 000.00 ms (p50 000.00, p99 000.00)"), fm.stringWidth("Objects: 0000 drawn, 0000 culled, 0000 filtered"));
+		return new Rectangle(0, 0, width + 16, lineHeight * 4 + 12);
+	}
+	public void drawOverlay(Graphics2D g2d)
+	{
+		g2d.setFont(overlayFont);
+		FontMetrics fm = g2d.getFontMetrics();
+		Rectangle bounds = getOverlayBounds(fm);
+		g2d.setColor(backgroundColor);
+		g2d.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+		g2d.setColor(textColor);
+		
+		String[] lines;
+		if (frameCount == 0)
+			lines = new String[] {"No frames recorded"};
+		else
+		{
+			int last = (int) ((totalFrames - 1) % frameCapacity);
+			long allocated = allocatedBytes[last];
+			lines = new String[]
+			{
+				String.format("Frame: %.2f ms (p50 %.2f, p99 %.2f)", frameTimes[last] / 1e6,
+						getFrameTimePercentile(50) / 1e6, getFrameTimePercentile(99) / 1e6),
+				"Objects: " + objectsDrawn[last] + " drawn, " + objectsCulled[last] + " culled, " + objectsFiltered[last] + " filtered",
+				"Image tiles drawn: " + tilesDrawn[last],
+				"Allocated: " + ((allocated < 0)?"n/a":(allocated + " bytes"))
+			};
+		}
+		
+		int y = 6 + fm.getAscent();
+		for (String line: lines)
+		{
+			g2d.drawString(line, 8, y);
+			y += fm.getHeight();
+		}
+	}
+	
+	public void writeCsv(Writer w) throws IOException
+	{
+		w.write("frame,timestamp_ms,frame_time_us,objects_drawn,objects_culled,objects_filtered,tiles_drawn,allocated_bytes\n");
+		long first = totalFrames - frameCount;
+		for (long frame = first; frame < totalFrames; frame++)
+		{
+			int i = (int) (frame % frameCapacity);
+			w.write(frame + "," + timestamps[i] + "," + (frameTimes[i] / 1000) + "," + objectsDrawn[i] + ","
+					+ objectsCulled[i] + "," + objectsFiltered[i] + "," + tilesDrawn[i] + "," + allocatedBytes[i] + "\n");
+		}
+	}
+}
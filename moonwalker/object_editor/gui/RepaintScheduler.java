@@ -0,0 +1,89 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+class RepaintScheduler
+{
+	private final JComponent component;
+	private final Timer timer;
+	private final int frameInterval;
+	
+	private Rectangle dirty;
+	private boolean fullRepaint;
+	private long lastFlush;
+	
+	public RepaintScheduler(JComponent target)
+	{
+		component = target;
+		frameInterval = 1000 / displayRefreshRate();
+		timer = new Timer(frameInterval, e -> flush());
+		timer.setRepeats(false);
+	}
+	
+	public void repaint()
+	{
+		fullRepaint = true;
+		schedule();
+	}
+	public void repaint(Rectangle region)
+	{
+		if (dirty == null)
+			dirty = new Rectangle(region);
+		else
+			dirty.add(region);
+		schedule();
+	}
+	
+	private void schedule()
+	{
+		if (timer.isRunning())
+			return;
+		
+		long elapsed = (System.nanoTime() - lastFlush) / 1000000;
+		if (elapsed >= frameInterval)
+			flush();
+		else
+		{
+			timer.setInitialDelay((int) (frameInterval - elapsed));
+			timer.start();
+		}
+	}
+	private void flush()
+	{
+		lastFlush = System.nanoTime();
+		if (fullRepaint)
+			component.repaint();
+		else if (dirty != null)
+			component.repaint(dirty);
+		fullRepaint = false;
+		dirty = null;
+	}
+	
+	public int getFrameInterval()
+	{
+		return frameInterval;
+	}
+	
+	static int displayRefreshRate()
+	{
+		try
+		{
+			if (!GraphicsEnvironment.isHeadless())
+			{
+				int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+						.getDefaultScreenDevice()
+						.getDisplayMode()
+						.getRefreshRate();
+				if (rate != DisplayMode.REFRESH_RATE_UNKNOWN)
+					return rate;
+			}
+		}
+		catch (Exception e)
+		{}
+		return 60;
+	}
+}
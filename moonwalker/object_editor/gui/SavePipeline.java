@@ -0,0 +1,233 @@
+package moonwalker.object_editor.gui;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.utils.MoonwalkerIO;
+import moonwalker.core.utils.MoonwalkerMetadata;
+import moonwalker.object_editor.io.RomBuffer;
+import moonwalker.object_editor.io.RomChecksum;
+
+class SavePipeline
+{
+	interface Listener
+	{
+		void progress(String message, int percent);
+		void finished(Path target, int bytesWritten, long romCrc);
+		void cancelled(Path target);
+		void failed(Path target, Exception e);
+	}
+	
+	static class Request
+	{
+		private final RomBuffer romBuffer;
+		private final Path target;
+		private final MDirectObject[][] objects;
+		private final MoonwalkerMetadata meta;
+		private final Listener listener;
+		private final boolean incremental;
+		private final boolean verifyChecksum;
+		private boolean serialize;
+		private Runnable restoreSuperseded;
+		private volatile boolean cancelled;
+		
+		public Request(RomBuffer romBuffer, Path target, ArrayList<MDirectObject>[] objects, MoonwalkerMetadata meta,
+				boolean serialize, boolean incremental, boolean verifyChecksum, Listener listener)
+		{
+			this.romBuffer = romBuffer;
+			this.target = target;
+			this.objects = snapshot(objects);
+			this.meta = meta;
+			this.serialize = serialize;
+			this.incremental = incremental;
+			this.verifyChecksum = verifyChecksum;
+			this.listener = listener;
+		}
+		
+		public void cancel()
+		{
+			cancelled = true;
+		}
+	}
+	
+	private final ThreadPoolExecutor executor;
+	private Request pending, running;
+	private byte[] scratch;
+	private RomBuffer scratchRom;
+	private long scratchModificationCount;
+	
+	public SavePipeline()
+	{
+		//the single worker exits when idle so it does not keep the vm alive
+		executor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r ->
+		{
+			Thread t = new Thread(r, "ROM save");
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		});
+	}
+	
+	public synchronized void submit(Request request)
+	{
+		//a request that has not started yet is replaced, its objects are older anyway
+		//its stages are saved by the new request, so it is only told it was cancelled if the new one does not complete
+		if (pending != null)
+		{
+			request.serialize |= pending.serialize;
+			Listener listener = pending.listener;
+			Path target = pending.target;
+			Runnable earlier = pending.restoreSuperseded;
+			request.restoreSuperseded = () ->
+			{
+				if (earlier != null)
+					earlier.run();
+				listener.cancelled(target);
+			};
+		}
+		else
+			executor.execute(this::runPending);
+		pending = request;
+	}
+	public synchronized void cancel()
+	{
+		if (pending != null)
+			pending.cancel();
+		if (running != null)
+			running.cancel();
+	}
+	public synchronized boolean isBusy()
+	{
+		return (pending != null) || (running != null);
+	}
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this)
+		{
+			while (isBusy())
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				wait(remaining);
+			}
+		}
+		return true;
+	}
+	
+	private void runPending()
+	{
+		Request req;
+		synchronized (this)
+		{
+			req = pending;
+			pending = null;
+			running = req;
+		}
+		if (req == null)
+			return;
+		
+		Runnable callback;
+		try
+		{
+			int written = save(req);
+			if (req.cancelled && (written < 0))
+				callback = () ->
+				{
+					restoreSuperseded(req);
+					req.listener.cancelled(req.target);
+				};
+			else
+			{
+				long crc = req.romBuffer.crc32();
+				callback = () -> req.listener.finished(req.target, written, crc);
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			callback = () ->
+			{
+				restoreSuperseded(req);
+				req.listener.failed(req.target, e);
+			};
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				running = null;
+				notifyAll();
+			}
+		}
+		SwingUtilities.invokeLater(callback);
+	}
+	private int save(Request req) throws Exception
+	{
+		RomBuffer rom = req.romBuffer;
+		boolean serialize = req.serialize || !req.incremental || !rom.isSavedTo(req.target);
+		if (serialize)
+		{
+			report(req, "Serializing objects", 10);
+			//the scratch still holds the content of the last save unless the Rom changed since
+			if (!isScratchCurrent(rom))
+			{
+				if ((scratch == null) || (scratch.length != rom.length()))
+					scratch = new byte[rom.length()];
+				rom.copyTo(scratch);
+			}
+			scratchRom = null;
+			MoonwalkerIO.saveMainObjectArray(scratch, req.objects, req.meta);
+			if (req.cancelled)
+				return -1;
+			
+			report(req, "Comparing", 40);
+			rom.commitFrom(scratch);
+			scratchRom = rom;
+			scratchModificationCount = rom.getModificationCount();
+		}
+		report(req, "Updating checksum", 60);
+		boolean scratchCurrent = isScratchCurrent(rom);
+		rom.fixChecksum(req.verifyChecksum);
+		if (scratchCurrent)
+		{
+			rom.read(RomChecksum.checksumOffset, scratch, RomChecksum.checksumOffset, 2);
+			scratchModificationCount = rom.getModificationCount();
+		}
+		if (req.cancelled)
+			return -1;
+		
+		//the target is only replaced by the final rename, so a failure up to here leaves it intact
+		report(req, "Writing " + req.target.getFileName(), 70);
+		return rom.writeTo(req.target, req.incremental);
+	}
+	private static void restoreSuperseded(Request req)
+	{
+		if (req.restoreSuperseded != null)
+			req.restoreSuperseded.run();
+	}
+	private boolean isScratchCurrent(RomBuffer rom)
+	{
+		return (scratchRom == rom) && (scratchModificationCount == rom.getModificationCount());
+	}
+	private static void report(Request req, String message, int percent)
+	{
+		SwingUtilities.invokeLater(() -> req.listener.progress(message, percent));
+	}
+	
+	private static MDirectObject[][] snapshot(ArrayList<MDirectObject>[] listArr)
+	{
+		MDirectObject[][] ret = new MDirectObject[listArr.length][];
+		for (int i = 0; i < listArr.length; i++)
+		{
+			ret[i] = new MDirectObject[listArr[i].size()];
+			for (int j = 0; j < ret[i].length; j++)
+				ret[i][j] = StageDisplay.copyObject(listArr[i].get(j));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,148 @@
+package moonwalker.object_editor.gui;
+
+import java.util.Arrays;
+
+class StackCountMap
+{
+	private final static long emptyKey = Long.MIN_VALUE;
+	
+	private long[] keys;
+	private int[] counts;
+	private int size;
+	
+	public StackCountMap()
+	{
+		keys = new long[64];
+		counts = new int[64];
+		Arrays.fill(keys, emptyKey);
+	}
+	
+	public void clear()
+	{
+		Arrays.fill(keys, emptyKey);
+		Arrays.fill(counts, 0);
+		size = 0;
+	}
+	public void increment(int x, int y)
+	{
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		
+		long key = pack(x, y);
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != emptyKey)
+		{
+			if (keys[i] == key)
+			{
+				counts[i]++;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		counts[i] = 1;
+		size++;
+	}
+	public void decrement(int x, int y)
+	{
+		long key = pack(x, y);
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != emptyKey)
+		{
+			if (keys[i] == key)
+			{
+				if (--counts[i] <= 0)
+					removeAt(i);
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+	public int get(int x, int y)
+	{
+		long key = pack(x, y);
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != emptyKey)
+		{
+			if (keys[i] == key)
+				return counts[i];
+			i = (i + 1) & mask;
+		}
+		return 0;
+	}
+	
+	public int capacity()
+	{
+		return keys.length;
+	}
+	public int countAt(int slot)
+	{
+		return (keys[slot] == emptyKey)?0:counts[slot];
+	}
+	public int xAt(int slot)
+	{
+		return (int) (keys[slot] >> 32);
+	}
+	public int yAt(int slot)
+	{
+		return (int) keys[slot];
+	}
+	public int size()
+	{
+		return size;
+	}
+	
+	private void removeAt(int slot)
+	{
+		int mask = keys.length - 1;
+		int gap = slot;
+		int i = (slot + 1) & mask;
+		while (keys[i] != emptyKey)
+		{
+			int home = hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask))
+			{
+				keys[gap] = keys[i];
+				counts[gap] = counts[i];
+				gap = i;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[gap] = emptyKey;
+		counts[gap] = 0;
+		size--;
+	}
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[oldKeys.length * 2];
+		counts = new int[oldCounts.length * 2];
+		Arrays.fill(keys, emptyKey);
+		
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++)
+		{
+			if (oldKeys[j] == emptyKey)
+				continue;
+			
+			int i = hash(oldKeys[j]) & mask;
+			while (keys[i] != emptyKey)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			counts[i] = oldCounts[j];
+		}
+	}
+	private static long pack(int x, int y)
+	{
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,185 @@
+package moonwalker.object_editor.gui;
+
+import java.util.Arrays;
+
+class StageClusterIndex
+{
+	interface ClusterVisitor
+	{
+		void visit(int count, double x, double y, int type);
+	}
+	
+	private final static int baseCellSize = 32;
+	private final static int levelCount = 5;
+	
+	private Cell[][] levels;
+	private int[] columns, rows;
+	
+	public StageClusterIndex(int width, int height)
+	{
+		resize(width, height);
+	}
+	
+	public void resize(int width, int height)
+	{
+		levels = new Cell[levelCount][];
+		columns = new int[levelCount];
+		rows = new int[levelCount];
+		for (int l = 0; l < levelCount; l++)
+		{
+			int cellSize = getCellSize(l);
+			columns[l] = Math.max(1, (width + cellSize - 1) / cellSize);
+			rows[l] = Math.max(1, (height + cellSize - 1) / cellSize);
+			levels[l] = new Cell[columns[l] * rows[l]];
+		}
+	}
+	public void clear()
+	{
+		for (Cell[] cells: levels)
+			Arrays.fill(cells, null);
+	}
+	public void add(int x, int y, int type)
+	{
+		for (int l = 0; l < levelCount; l++)
+		{
+			int index = cellIndex(l, x, y);
+			Cell cell = levels[l][index];
+			if (cell == null)
+			{
+				cell = new Cell();
+				levels[l][index] = cell;
+			}
+			cell.add(x, y, type);
+		}
+	}
+	public void remove(int x, int y, int type)
+	{
+		for (int l = 0; l < levelCount; l++)
+		{
+			Cell cell = levels[l][cellIndex(l, x, y)];
+			if (cell != null)
+				cell.remove(x, y, type);
+		}
+	}
+	
+	public int levelFor(double cellSize)
+	{
+		for (int l = 0; l < levelCount; l++)
+		{
+			if (getCellSize(l) >= cellSize)
+				return l;
+		}
+		return levelCount - 1;
+	}
+	public static int getCellSize(int level)
+	{
+		return baseCellSize << level;
+	}
+	
+	public int forEachInRange(int level, double minX, double minY, double maxX, double maxY, ClusterVisitor visitor)
+	{
+		int cellSize = getCellSize(level);
+		int startCol = clamp((int) Math.floor(minX / cellSize), columns[level]);
+		int endCol = clamp((int) Math.floor(maxX / cellSize), columns[level]);
+		int startRow = clamp((int) Math.floor(minY / cellSize), rows[level]);
+		int endRow = clamp((int) Math.floor(maxY / cellSize), rows[level]);
+		
+		Cell[] cells = levels[level];
+		int objects = 0;
+		for (int r = startRow; r <= endRow; r++)
+		{
+			int rowOffset = r * columns[level];
+			for (int c = startCol; c <= endCol; c++)
+			{
+				Cell cell = cells[rowOffset + c];
+				if ((cell == null) || (cell.count == 0))
+					continue;
+				
+				double x = (double) cell.sumX / cell.count;
+				double y = (double) cell.sumY / cell.count;
+				if ((x < minX) || (x > maxX) || (y < minY) || (y > maxY))
+					continue;
+				
+				visitor.visit(cell.count, x, y, cell.dominantType());
+				objects += cell.count;
+			}
+		}
+		return objects;
+	}
+	
+	private int cellIndex(int level, int x, int y)
+	{
+		int cellSize = getCellSize(level);
+		return clamp(Math.floorDiv(y, cellSize), rows[level]) * columns[level]
+				+ clamp(Math.floorDiv(x, cellSize), columns[level]);
+	}
+	private static int clamp(int i, int length)
+	{
+		return (i < 0)?0:((i >= length)?(length - 1):i);
+	}
+	
+	private static class Cell
+	{
+		private int count;
+		private long sumX, sumY;
+		private int[] types = new int[2];
+		private int[] typeCounts = new int[2];
+		private int typeSize;
+		
+		private void add(int x, int y, int type)
+		{
+			count++;
+			sumX += x;
+			sumY += y;
+			for (int i = 0; i < typeSize; i++)
+			{
+				if (types[i] == type)
+				{
+					typeCounts[i]++;
+					return;
+				}
+			}
+			if (typeSize == types.length)
+			{
+				types = Arrays.copyOf(types, typeSize * 2);
+				typeCounts = Arrays.copyOf(typeCounts, typeSize * 2);
+			}
+			types[typeSize] = type;
+			typeCounts[typeSize] = 1;
+			typeSize++;
+		}
+		private void remove(int x, int y, int type)
+		{
+			for (int i = 0; i < typeSize; i++)
+			{
+				if (types[i] == type)
+				{
+					count--;
+					sumX -= x;
+					sumY -= y;
+					if (--typeCounts[i] == 0)
+					{
+						typeSize--;
+						types[i] = types[typeSize];
+						typeCounts[i] = typeCounts[typeSize];
+					}
+					return;
+				}
+			}
+		}
+		private int dominantType()
+		{
+			int ret = types[0];
+			int max = typeCounts[0];
+			for (int i = 1; i < typeSize; i++)
+			{
+				if (typeCounts[i] > max)
+				{
+					max = typeCounts[i];
+					ret = types[i];
+				}
+			}
+			return ret;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package moonwalker.object_editor.gui;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -10,27 +11,27 @@ import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.font.LineMetrics;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.prefs.Preferences;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -58,11 +59,20 @@ import javax.swing.text.Document;
 import javax.swing.text.DocumentFilter;
 import moonwalker.core.structures.MDirectObject;
 import moonwalker.core.utils.MoonwalkerMetadata;
+import moonwalker.object_editor.batch.ObjectDiff;
+import moonwalker.object_editor.io.IndexedImages;
 
 class StageDisplay
 {
 	private ArrayList<MDirectObject> objectArr;
+	private StageObjectGrid objectGrid;
+	private ArrayList<MDirectObject> visibleObjects;
 	private BufferedImage img;
+	private int[] imagePalette, imagePaletteBase;
+	private boolean modified;
+	private StageEditListener editListener;
+	private int imgWidth, imgHeight;
+	private StageImagePyramid imagePyramid;
 	private Preferences prefs;
 	private MoonwalkerMetadata meta;
 	
@@ -77,20 +87,45 @@ class StageDisplay
 	
 	private int selectionThreshold;
 	
-	private HashMap<Integer, Color> outlineColMap, fillColMap;
+	private ObjectPalette palette;
+	private MarkerAtlas markerAtlas;
+	
+	private final static int pointMult = 5;
 	
 	private final Color stackStringColor = Color.RED;
+	private final static Color addedColor = new Color(40, 200, 40);
+	private final static Color removedColor = new Color(230, 40, 200);
+	private final static Color movedColor = new Color(255, 150, 0);
+	private final static Color modifiedColor = new Color(0, 170, 255);
+	private List<ObjectDiff.Change> diff;
+	private Color[] stackStringColors;
+	private StackCountMap stackCounts;
+	private int shownObjectCount;
+	private StageClusterIndex clusterIndex;
+	private double clusterScale;
+	private final static int clusterScreenSize = 24;
+	private GlyphVector[] stackLabels;
+	private FontRenderContext stackLabelContext;
+	
+	private StageFrameBuffer frameBuffer;
+	private StageOverlayLayer overlayLayer;
+	private RepaintScheduler repaintScheduler;
+	private RenderStatistics statistics;
+	private boolean showStatistics;
 	
 	private Runnable updateDescriptionPanel;
 	
-	private ScheduledThreadPoolExecutor zoomAnimExecutor;
-	private int zoomAnimationFrame;
-	private double[] scaleChangeArr;
-	private double[] xChangeArr;
-	private double[] yChangeArr;
-	private Future<?> zoomAnimationFuture;
-	private final static int zoomAnimationFrameCount = 20;
-	private final static int zoomAnimationFramePause = 6;
+	private AnimationClock.Animation zoomAnimation;
+	private double zoomStartScale, zoomStartX, zoomStartY;
+	private double zoomTargetScale, zoomTargetX, zoomTargetY;
+	private long zoomStartTime;
+	private final static long zoomAnimationDuration = 120000000L;
+	
+	private AnimationClock.Animation panAnimation;
+	private double panVelocityX, panVelocityY;
+	private long panLastTime;
+	private final static double panFriction = 4.5;
+	private final static double panMinSpeed = 20;
 	
 	private JDialog editDialog;
 	private JLabel lAddressEdit;
@@ -114,33 +149,38 @@ class StageDisplay
 	private boolean addAddressSelected;
 	
 	public StageDisplay(ArrayList<MDirectObject> objArr, MoonwalkerMetadata metadata, BufferedImage image,
-			HashMap<Integer, Color> outlineColorMap, HashMap<Integer, Color> fillColorMap,
-			Preferences preferences, ScheduledThreadPoolExecutor zoomAnimationExecutor)
+			MarkerAtlas atlas, Preferences preferences)
 	{
 		objectArr = objArr;
 		meta = metadata;
 		img = image;
+		imgWidth = img.getWidth();
+		imgHeight = img.getHeight();
 		prefs = preferences;
-		zoomAnimExecutor = zoomAnimationExecutor;
 		
 		minScale = 0.2;
 		maxScale = 1000;
 		selectionThreshold = 5;
 		
-		int pointMult = 5;
-		
-		xPos = img.getWidth() / 2;
-		yPos = img.getHeight() / 2;
+		xPos = imgWidth / 2;
+		yPos = imgHeight / 2;
 		scale = 1;
 		
-		outlineColMap = outlineColorMap;
-		fillColMap = fillColorMap;
+		//the atlas is shared by all stage views, it only depends on the palette
+		markerAtlas = atlas;
+		palette = atlas.getPalette();
 		
 		showFilter = MDirectObject.Container.ALL_TABLES;
 		
-		scaleChangeArr = new double[zoomAnimationFrameCount];
-		xChangeArr = new double[zoomAnimationFrameCount];
-		yChangeArr = new double[zoomAnimationFrameCount];
+		imagePyramid = new StageImagePyramid(img);
+		objectGrid = new StageObjectGrid(imgWidth, imgHeight);
+		visibleObjects = new ArrayList<>();
+		stackCounts = new StackCountMap();
+		clusterIndex = new StageClusterIndex(imgWidth, imgHeight);
+		clusterScale = prefs.getDouble("ClusterScaleThreshold", 0.5);
+		stackStringColors = new Color[256];
+		stackLabels = new GlyphVector[0];
+		rebuildObjectIndices();
 		
 		imgPanel = new JPanel()
 		{
@@ -149,106 +189,108 @@ class StageDisplay
 			{
 				super.paintComponent(g);
 				
-				if (img != null)
+				int width = getWidth();
+				int height = getHeight();
+				if ((img == null) || (width <= 0) || (height <= 0))
+					return;
+				
+				double sca = scale;
+				double xP = xPos;
+				double yP = yPos;
+				
+				statistics.beginFrame();
+				ArrayList<Rectangle> regions = frameBuffer.prepare(getGraphicsConfiguration(), width, height, sca, xP, yP);
+				if (!regions.isEmpty())
 				{
-					Graphics2D g2d = (Graphics2D) g.create();
-					
-					AffineTransform tra = createTransform(getWidth(), getHeight());
-					
-					g2d.drawImage(img, new AffineTransformOp(tra, AffineTransformOp.TYPE_NEAREST_NEIGHBOR), 0, 0);
-					
-					double size = pointMult * Math.sqrt(scale * scale + 1.5);
-
-					g2d.setStroke(new BasicStroke((float) (size / pointMult * 0.5 + 1)));
-					g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-					
-					final double scaleThreshold = 0.25;
-					
-					if (objectArr != null)
+					Graphics2D g2d = frameBuffer.getBuffer().createGraphics();
+					for (Rectangle region: regions)
 					{
-						double sca = scale;
-						
-						HashMap<Point, Integer> intersectionMap = null;
-						if (sca > scaleThreshold)
-							intersectionMap = new HashMap<>();
-						
-						for (MDirectObject obj: objectArr)
-						{
-							if (!isExclusive(obj.getContainer(), showFilter))
-								continue;
-							
-							int aX = obj.getAbsoluteX();
-							int aY = obj.getAbsoluteY();
-							
-							Point2D p = new Point2D.Double(aX, aY);
-							tra.transform(p, p);
-							
-							Ellipse2D ellip = new Ellipse2D.Double(p.getX() - (size / 2), p.getY() - (size / 2), size, size);
-		    				
-							g2d.setColor(fillColMap.getOrDefault(0xFFFF & obj.getType(), Color.BLACK));
-		    				g2d.fill(ellip);
-		    				g2d.setColor(outlineColMap.getOrDefault(0xFFFF & obj.getType(), Color.RED));
-		    				g2d.draw(ellip);
-		    				
-		    				if (sca > scaleThreshold)
-		    				{
-			    				Point point = new Point(aX, aY);
-			    				int n = intersectionMap.getOrDefault(point, 0);
-			    				intersectionMap.put(point, n + 1);
-		    				}
-						}
-						
-						if (sca > scaleThreshold)
-	    				{
-							if (sca > 1.5)
-								g2d.setColor(stackStringColor);
-							else
-							{
-								int red = stackStringColor.getRed();
-								int green = stackStringColor.getGreen();
-								int blue = stackStringColor.getBlue();
-								g2d.setColor(new Color(red, green, blue, (int) ((sca - scaleThreshold) * 204)));
-							}
-								
-							for (Map.Entry<Point, Integer> entry: intersectionMap.entrySet())
-							{
-								int n = entry.getValue();
-								if (n > 1)
-								{
-									Point point = entry.getKey();
-									Point2D p = new Point2D.Double(point.x, point.y);
-									tra.transform(p, p);
-									
-									g2d.drawString("" + n, (float) (p.getX() + (size / 2)), (float) (p.getY() - (size / 2)));
-								}
-							}
-	    				}
-						
-						if (selectedObj != null)
-						{
-							int aX = selectedObj.getAbsoluteX();
-							int aY = selectedObj.getAbsoluteY();
-							
-							Point2D p = new Point2D.Double(aX, aY);
-							tra.transform(p, p);
-							
-							size *= 1.5;
-							
-							Rectangle2D rect = new Rectangle2D.Double(p.getX() - (size / 2), p.getY() - (size / 2), size, size);
-							g2d.setColor(Color.RED);
-							g2d.setStroke(new BasicStroke(2f,
-									BasicStroke.CAP_ROUND,
-									BasicStroke.JOIN_BEVEL,
-									1,
-									new float[]{7, 5},
-									3.5f));
-							g2d.draw(rect);
-						}
+						g2d.setClip(region);
+						g2d.setColor(getBackground());
+						g2d.fillRect(region.x, region.y, region.width, region.height);
+						statistics.addTiles(imagePyramid.draw(g2d, region, sca, xP, yP, width, height));
+					}
+					g2d.dispose();
+					frameBuffer.validated();
+				}
+				
+				regions = overlayLayer.prepare(getGraphicsConfiguration(), width, height, sca, xP, yP);
+				if (!regions.isEmpty())
+				{
+					Graphics2D g2d = overlayLayer.getLayer().createGraphics();
+					g2d.setFont(getFont());
+					int drawn = 0;
+					for (Rectangle region: regions)
+					{
+						g2d.setClip(region);
+						g2d.setComposite(AlphaComposite.Clear);
+						g2d.fillRect(region.x, region.y, region.width, region.height);
+						g2d.setComposite(AlphaComposite.SrcOver);
+						drawn += renderObjects(g2d, region, overlayLayer.getOffsetX(), overlayLayer.getOffsetY(), sca);
 					}
+					//culling is counted once per frame, objects hidden by the filter are not culled
+					int filtered = (objectArr == null)?0:(objectArr.size() - shownObjectCount);
+					statistics.addObjects(drawn, Math.max(0, objectGrid.getObjectCount() - filtered - drawn), filtered);
+					g2d.dispose();
+					overlayLayer.validated();
 				}
+				
+				g.drawImage(frameBuffer.getBuffer(), 0, 0, null);
+				g.drawImage(overlayLayer.getLayer(), overlayLayer.getDrawX(), overlayLayer.getDrawY(), null);
+				statistics.endFrame();
+				
+				if (showStatistics)
+					statistics.drawOverlay((Graphics2D) g);
 			}
 		};
 		imgPanel.setFont(imgPanel.getFont().deriveFont(imgPanel.getFont().getSize2D() * 1.5f).deriveFont(Font.BOLD));
+		frameBuffer = new StageFrameBuffer();
+		overlayLayer = new StageOverlayLayer();
+		repaintScheduler = new RepaintScheduler(imgPanel);
+		statistics = new RenderStatistics();
+		showStatistics = prefs.getBoolean("ShowRenderStatistics", false);
+		
+		zoomAnimation = now ->
+		{
+			double t = (now - zoomStartTime) / (double) zoomAnimationDuration;
+			if (t >= 1)
+			{
+				scale = zoomTargetScale;
+				xPos = zoomTargetX;
+				yPos = zoomTargetY;
+			}
+			else
+			{
+				double f = AnimationClock.easeOut(t);
+				scale = zoomStartScale + (zoomTargetScale - zoomStartScale) * f;
+				xPos = zoomStartX + (zoomTargetX - zoomStartX) * f;
+				yPos = zoomStartY + (zoomTargetY - zoomStartY) * f;
+			}
+			limitCoords(imgWidth, imgHeight);
+			repaintScheduler.repaint();
+			return t < 1;
+		};
+		panAnimation = now ->
+		{
+			double dt = (now - panLastTime) / 1e9;
+			panLastTime = now;
+			
+			double prevX = xPos;
+			double prevY = yPos;
+			xPos += panVelocityX * dt;
+			yPos += panVelocityY * dt;
+			limitCoords(imgWidth, imgHeight);
+			if (xPos != prevX + panVelocityX * dt)
+				panVelocityX = 0;
+			if (yPos != prevY + panVelocityY * dt)
+				panVelocityY = 0;
+			
+			double decay = Math.exp(-panFriction * dt);
+			panVelocityX *= decay;
+			panVelocityY *= decay;
+			repaintScheduler.repaint();
+			return Math.hypot(panVelocityX, panVelocityY) * scale > panMinSpeed;
+		};
 		
 		imgPanel.addMouseWheelListener(e ->
 		{
@@ -256,34 +298,37 @@ class StageDisplay
 			{
 				final double tickSpeed = 7.5;
 				
-				double prevScale = scale;
+				AnimationClock clock = AnimationClock.getInstance();
+				clock.stop(panAnimation);
+				
+				boolean smoothZoom = prefs.getBoolean("EnableSmoothZoom", true);
+				boolean merge = smoothZoom && clock.isRunning(zoomAnimation);
+				
+				double prevScale = merge?zoomTargetScale:scale;
+				double prevX = merge?zoomTargetX:xPos;
+				double prevY = merge?zoomTargetY:yPos;
 				
 				double tick = e.getPreciseWheelRotation();
 				double s = tick / tickSpeed;
 				
 				double newScale = prevScale - (s * prevScale);
-				double newX = xPos;
-				double newY = yPos;
+				double newX = prevX;
+				double newY = prevY;
 				
-				boolean smoothZoom = prefs.getBoolean("EnableSmoothZoom", true);
-				
-				if (!smoothZoom)
-				{
-					newScale = defractionize(newScale);
-					newScale = limit(newScale, minScale, maxScale);
-				}
+				newScale = defractionize(newScale);
+				newScale = limit(newScale, minScale, maxScale);
 				
-				if (((scale != minScale) && (scale != maxScale))
+				if (((prevScale != minScale) && (prevScale != maxScale))
 						|| ((newScale != minScale) && (newScale != maxScale)))
 				{
 					Point2D p = point2D(e.getPoint());
 					
-					AffineTransform tra = createTransform(imgPanel.getWidth(), imgPanel.getHeight(), newScale);
+					AffineTransform tra = createTransform(imgPanel.getWidth(), imgPanel.getHeight(), newScale, prevX, prevY);
 					
 					tra.inverseTransform(p, p);
 					
-					newX += (p.getX() - xPos) * -s;
-					newY += (p.getY() - yPos) * -s;
+					newX += (p.getX() - prevX) * -s;
+					newY += (p.getY() - prevY) * -s;
 				}
 				
 				if (!smoothZoom)
@@ -291,75 +336,19 @@ class StageDisplay
 					scale = newScale;
 					xPos = newX;
 					yPos = newY;
-					limitCoords(img.getWidth(), img.getHeight());
-					imgPanel.repaint();
+					limitCoords(imgWidth, imgHeight);
+					requestRepaint();
 					return;
 				}
 				
-				double destScale = newScale;
-				double destX = newX;
-				double destY = newY;
-				
-				synchronized (scaleChangeArr)
-				{
-					if (zoomAnimationFuture != null)
-					{
-						zoomAnimationFuture.cancel(true);
-						zoomAnimationFuture = null;
-						zoomAnimationFrame = 0;
-					}
-					zoomAnimationFuture = zoomAnimExecutor.scheduleAtFixedRate(() -> 
-					{
-						synchronized (scaleChangeArr)
-						{
-							if (zoomAnimationFrame == 0)
-							{
-								double scaleDiff = destScale - scale;
-								double xDiff = destX - xPos;
-								double yDiff = destY - yPos;
-								
-								double tickTotal = 0;
-								
-								for (int i = 0; i < zoomAnimationFrameCount; i++)
-								{
-									tickTotal += 1 / (i * i / 4.0 + 1);
-								}
-								for (int i = 0; i < zoomAnimationFrameCount; i++)
-								{
-									double diffTick = (1 / (i * i / 4.0 + 1)) / tickTotal;
-									scaleChangeArr[i] = scaleDiff * diffTick;
-									xChangeArr[i] = xDiff * diffTick;
-									yChangeArr[i] = yDiff * diffTick;
-								}
-							}
-							if (zoomAnimationFrame < zoomAnimationFrameCount)
-							{
-								double currScale = scale + scaleChangeArr[zoomAnimationFrame];
-								currScale = limit(currScale, minScale, maxScale);
-								currScale = defractionize(currScale);
-								if (currScale != scale)
-								{
-									scale = currScale;
-									xPos += xChangeArr[zoomAnimationFrame];
-									yPos += yChangeArr[zoomAnimationFrame];
-									limitCoords(img.getWidth(), img.getHeight());
-									SwingUtilities.invokeLater(() -> imgPanel.repaint());
-								}
-								zoomAnimationFrame++;
-							}
-							else
-							{
-								if (zoomAnimationFuture != null)
-								{
-									Future<?> f = zoomAnimationFuture;
-									zoomAnimationFuture = null;
-									zoomAnimationFrame = 0;
-									f.cancel(false);
-								}
-							}
-						}
-					}, 0, zoomAnimationFramePause, TimeUnit.MILLISECONDS);
-				}
+				zoomStartScale = scale;
+				zoomStartX = xPos;
+				zoomStartY = yPos;
+				zoomTargetScale = newScale;
+				zoomTargetX = limit(newX, 0, imgWidth);
+				zoomTargetY = limit(newY, 0, imgHeight);
+				zoomStartTime = System.nanoTime();
+				clock.start(zoomAnimation);
 			}
 			catch (Exception ex)
 			{
@@ -380,6 +369,12 @@ class StageDisplay
 				{
 					isDraggable = true;
 					prev = e.getPoint();
+					AnimationClock clock = AnimationClock.getInstance();
+					clock.stop(zoomAnimation);
+					clock.stop(panAnimation);
+					panVelocityX = 0;
+					panVelocityY = 0;
+					panLastTime = System.nanoTime();
 				}
 				else
 					isDraggable = false;
@@ -387,6 +382,16 @@ class StageDisplay
 			@Override
 			public void mouseReleased(MouseEvent e)
 			{
+				if (isDraggable && prefs.getBoolean("EnableKineticPanning", true))
+				{
+					long now = System.nanoTime();
+					if ((now - panLastTime < 50000000L)
+							&& (Math.hypot(panVelocityX, panVelocityY) * scale > panMinSpeed * 5))
+					{
+						panLastTime = now;
+						AnimationClock.getInstance().start(panAnimation);
+					}
+				}
 				isDraggable = false;
 			}
 			@Override
@@ -395,13 +400,21 @@ class StageDisplay
 				if (isDraggable)
 				{
 					Point p = e.getPoint();
-					xPos += (prev.x - p.x) / scale;
-					yPos += (prev.y - p.y) / scale;
+					double dx = (prev.x - p.x) / scale;
+					double dy = (prev.y - p.y) / scale;
+					xPos += dx;
+					yPos += dy;
+					
+					limitCoords(imgWidth, imgHeight);
+					
+					long now = System.nanoTime();
+					double dt = Math.max(now - panLastTime, 1000000L) / 1e9;
+					panVelocityX = 0.6 * (dx / dt) + 0.4 * panVelocityX;
+					panVelocityY = 0.6 * (dy / dt) + 0.4 * panVelocityY;
+					panLastTime = now;
 					
-					limitCoords(img.getWidth(), img.getHeight());
-						
 					prev = p;
-					imgPanel.paintImmediately(0, 0, imgPanel.getWidth(), imgPanel.getHeight());
+					repaintScheduler.repaint();
 				}
 			}
 		};
@@ -469,7 +482,7 @@ class StageDisplay
 				if (notNull)
 				{
 					selectedObj = null;
-					imgPanel.repaint();
+					requestRepaint();
 				}
 				
 				lType.setText("[No object selected]");
@@ -488,13 +501,7 @@ class StageDisplay
 			descriptionPanel.repaint();
 		};
 		bEdit.addActionListener(e -> showEditDialog(selectedObj));
-		bRemove.addActionListener(e ->
-		{
-			objectArr.remove(selectedObj);
-			selectedObj = null;
-			updateDescriptionPanel.run();
-			imgPanel.repaint();
-		});
+		bRemove.addActionListener(e -> removeObject(selectedObj));
 		
 		Runnable updateDescriptionPanelPosition = () ->
 		{
@@ -523,6 +530,7 @@ class StageDisplay
 				filter = null;
 			
 			showFilter = filter;
+			rebuildFilteredIndices();
 			MDirectObject selectedObj = this.selectedObj;
 			
 			if ((selectedObj != null) && !isExclusive(selectedObj.getContainer(), filter))
@@ -530,7 +538,7 @@ class StageDisplay
 				selectedObj = null;
 				updateDescriptionPanel.run();
 			}
-			imgPanel.repaint();
+			requestRepaint();
 		};
 		
 		rbShowAT.addActionListener(e -> updateFilter.run());
@@ -557,6 +565,7 @@ class StageDisplay
 		{
 			private boolean isDraggable;
 			private boolean isDragging;
+			private int dragIndex;
 			
 			@Override
 			public void mouseReleased(MouseEvent e)
@@ -568,32 +577,19 @@ class StageDisplay
 						AffineTransform tra = createTransform(imgPanel.getWidth(), imgPanel.getHeight());
 						
 						Point2D p = tra.inverseTransform(e.getPoint(), new Point2D.Double());
-						boolean selectionFound = false;
-						double threshold = selectionThreshold;
-						for (MDirectObject obj:objectArr)
-						{
-							if (!isExclusive(obj.getContainer(), showFilter))
-								continue;
-							
-							double dist = p.distance(obj.getAbsolutePosition());
-							if (dist > threshold)
-								continue;
-							
-							selectionFound = true;
-							selectedObj = obj;
-							threshold = dist;
-						}
-						if (!selectionFound)
-							selectedObj = null;
+						selectedObj = objectGrid.findNearest(p.getX(), p.getY(), selectionThreshold,
+								obj -> isExclusive(obj.getContainer(), showFilter));
 						
 						updateDescriptionPanel.run();
-						imgPanel.paintImmediately(0, 0, imgPanel.getWidth(), imgPanel.getHeight());
+						requestRepaint();
 					}
 					catch (Exception ex)
 					{
 						ex.printStackTrace();
 					}
 				}
+				else if (isDragging && (editListener != null))
+					editListener.dragFinished(dragIndex, selectedObj);
 				isDragging = false;
 			}
 			@Override
@@ -609,7 +605,11 @@ class StageDisplay
 						Point2D p = tra.inverseTransform(e.getPoint(), new Point2D.Double());
 						
 						if (p.distance(selObj.getAbsolutePosition()) < selectionThreshold)
+						{
+							//the list does not change during a drag, so the index is looked up once
 							isDraggable = true;
+							dragIndex = indexOfObject(selObj);
+						}
 						else
 							isDraggable = false;
 					}
@@ -640,10 +640,27 @@ class StageDisplay
 							x = 0;
 						if (y < 0)
 							y = 0;
+						int prevX = selectedObj.getAbsoluteX();
+						int prevY = selectedObj.getAbsoluteY();
 						selectedObj.setAbsolutePosition(x, y);
+						objectGrid.move(selectedObj, prevX, prevY);
+						modified = true;
+						if (editListener != null)
+							editListener.objectMoved(dragIndex, selectedObj, prevX, prevY);
+						int type = 0xFFFF & selectedObj.getType();
+						uncountObject(prevX, prevY, type);
+						countObject(x, y, type);
 						
 						updateDescriptionPanelPosition.run();
-						imgPanel.paintImmediately(0, 0, imgPanel.getWidth(), imgPanel.getHeight());
+						
+						if (scale < clusterScale)
+							requestRepaint();
+						else
+						{
+							Rectangle dirty = markerBounds(prevX, prevY);
+							dirty.add(markerBounds(x, y));
+							requestRepaint(dirty);
+						}
 					}
 				}
 				catch (Exception ex)
@@ -811,17 +828,28 @@ class StageDisplay
 					data = withoutSpaces(data);
 				byte[] dataArr = hexArray(data);
 				
+				MDirectObject previous = copyObject(editedObject);
 				if (type != editedObject.getType())
 				{
 					editedObject.setType(type);
-					imgPanel.repaint();
+					rebuildFilteredIndices();
+					requestRepaint();
 				}
 				editedObject.setData(Arrays.copyOf(dataArr, editedObject.getDataLength()));
 				
 				if (editAddressChanged)
 					editedObject.setAllocationAddress(addrEditSelectedAddress);
 				
-				editedObject.setContainer((MDirectObject.Container) cbContainerEdit.getSelectedItem());
+				MDirectObject.Container container = (MDirectObject.Container) cbContainerEdit.getSelectedItem();
+				if (container != editedObject.getContainer())
+				{
+					editedObject.setContainer(container);
+					rebuildFilteredIndices();
+					requestRepaint();
+				}
+				modified = true;
+				if (editListener != null)
+					editListener.objectEdited(indexOfObject(editedObject), editedObject, previous);
 				
 				editDialog.dispose();
 				
@@ -1289,9 +1317,15 @@ class StageDisplay
 				addObject.setContainer((MDirectObject.Container) cbContainerAdd.getSelectedItem());
 				
 				objectArr.add(addObject);
+				objectGrid.add(addObject);
+				modified = true;
+				if (editListener != null)
+					editListener.objectAdded(objectArr.size() - 1, addObject);
+				if (isExclusive(addObject.getContainer(), showFilter))
+					countObject(addObject.getAbsoluteX(), addObject.getAbsoluteY(), 0xFFFF & addObject.getType());
 				
 				addDialog.dispose();
-				imgPanel.repaint();
+				requestRepaint();
 			});
 			
 			Runnable cancelAction = () ->
@@ -1389,11 +1423,280 @@ class StageDisplay
 		}
 		return ret;
 	}
+	private int renderObjects(Graphics2D g2d, Rectangle clip, double offsetX, double offsetY, double sca)
+	{
+		if (sca < clusterScale)
+			return renderClusters(g2d, clip, offsetX, offsetY, sca);
+		
+		double size = markerSize(sca);
+		float strokeWidth = (float) (size / pointMult * 0.5 + 1);
+		
+		g2d.setStroke(new BasicStroke(strokeWidth));
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		
+		boolean useAtlas = markerAtlas.setMarkerSize(size, strokeWidth);
+		
+		final double scaleThreshold = 0.25;
+		int drawn = 0;
+		
+		if (objectArr != null)
+		{
+			double margin = (size + 1) / sca;
+			
+			visibleObjects.clear();
+			objectGrid.forEachInRange((clip.x - offsetX) / sca - margin, (clip.y - offsetY) / sca - margin,
+					(clip.x + clip.width - offsetX) / sca + margin, (clip.y + clip.height - offsetY) / sca + margin,
+					visibleObjects::add);
+			
+			for (MDirectObject obj: visibleObjects)
+			{
+				if (!isExclusive(obj.getContainer(), showFilter))
+					continue;
+				
+				int aX = obj.getAbsoluteX();
+				int aY = obj.getAbsoluteY();
+				int type = 0xFFFF & obj.getType();
+				
+				double pX = offsetX + aX * sca;
+				double pY = offsetY + aY * sca;
+				
+				if (useAtlas)
+					markerAtlas.drawMarker(g2d, type, pX, pY);
+				else
+				{
+					Ellipse2D ellip = new Ellipse2D.Double(pX - (size / 2), pY - (size / 2), size, size);
+					
+					g2d.setColor(palette.getFill(type));
+					g2d.fill(ellip);
+					g2d.setColor(palette.getOutline(type));
+					g2d.draw(ellip);
+				}
+				drawn++;
+			}
+			
+			if (sca > scaleThreshold)
+			{
+				if (sca > 1.5)
+					g2d.setColor(stackStringColor);
+				else
+					g2d.setColor(getStackStringColor((int) ((sca - scaleThreshold) * 204)));
+				
+				FontRenderContext frc = g2d.getFontRenderContext();
+				double labelMargin = size + g2d.getFont().getSize2D() * 4;
+				
+				for (int i = 0, l = stackCounts.capacity(); i < l; i++)
+				{
+					int n = stackCounts.countAt(i);
+					if (n > 1)
+					{
+						double pX = offsetX + stackCounts.xAt(i) * sca;
+						double pY = offsetY + stackCounts.yAt(i) * sca;
+						if ((pX < clip.x - labelMargin) || (pX > clip.x + clip.width + labelMargin)
+								|| (pY < clip.y - labelMargin) || (pY > clip.y + clip.height + labelMargin))
+							continue;
+						
+						g2d.drawGlyphVector(getStackLabel(n, frc), (float) (pX + (size / 2)), (float) (pY - (size / 2)));
+					}
+				}
+			}
+			
+			drawDiff(g2d, offsetX, offsetY, sca, size * 1.5);
+			drawSelection(g2d, offsetX, offsetY, sca, size * 1.5);
+		}
+		return drawn;
+	}
+	private int renderClusters(Graphics2D g2d, Rectangle clip, double offsetX, double offsetY, double sca)
+	{
+		if (objectArr == null)
+			return 0;
+		
+		int level = clusterIndex.levelFor(clusterScreenSize / sca);
+		double size = markerSize(sca);
+		double maxRadius = clusterRadius(objectArr.size());
+		double margin = (maxRadius + 1) / sca;
+		
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		
+		int drawn = clusterIndex.forEachInRange(level, (clip.x - offsetX) / sca - margin, (clip.y - offsetY) / sca - margin,
+				(clip.x + clip.width - offsetX) / sca + margin, (clip.y + clip.height - offsetY) / sca + margin,
+				(count, x, y, type) ->
+				{
+					double pX = offsetX + x * sca;
+					double pY = offsetY + y * sca;
+					double r = (count > 1)?clusterRadius(count):(size / 2);
+					
+					markerAtlas.drawCluster(g2d, type, r, pX, pY);
+					if (count > 1)
+						markerAtlas.drawLabel(g2d, count, stackStringColor, pX + r, pY - r);
+				});
+		
+		drawDiff(g2d, offsetX, offsetY, sca, size * 1.5);
+		drawSelection(g2d, offsetX, offsetY, sca, size * 1.5);
+		return drawn;
+	}
+	private static double clusterRadius(int count)
+	{
+		return Math.min(4 + 2.5 * Math.log(count) / Math.log(2), clusterScreenSize / 2.0);
+	}
+	private void drawSelection(Graphics2D g2d, double offsetX, double offsetY, double sca, double size)
+	{
+		if (selectedObj == null)
+			return;
+		
+		double pX = offsetX + selectedObj.getAbsoluteX() * sca;
+		double pY = offsetY + selectedObj.getAbsoluteY() * sca;
+		
+		Rectangle2D rect = new Rectangle2D.Double(pX - (size / 2), pY - (size / 2), size, size);
+		g2d.setColor(Color.RED);
+		g2d.setStroke(new BasicStroke(2f,
+				BasicStroke.CAP_ROUND,
+				BasicStroke.JOIN_BEVEL,
+				1,
+				new float[]{7, 5},
+				3.5f));
+		g2d.draw(rect);
+	}
+	private void drawDiff(Graphics2D g2d, double offsetX, double offsetY, double sca, double size)
+	{
+		List<ObjectDiff.Change> changes = diff;
+		if (changes == null)
+			return;
+		
+		//the displayed objects are the "before" side, objects only present in the other Rom are drawn as rings
+		g2d.setStroke(new BasicStroke(2.5f));
+		double r = size / 2;
+		for (ObjectDiff.Change c: changes)
+		{
+			MDirectObject before = c.getBefore();
+			MDirectObject after = c.getAfter();
+			double bX = (before == null)?0:(offsetX + before.getAbsoluteX() * sca);
+			double bY = (before == null)?0:(offsetY + before.getAbsoluteY() * sca);
+			double aX = (after == null)?0:(offsetX + after.getAbsoluteX() * sca);
+			double aY = (after == null)?0:(offsetY + after.getAbsoluteY() * sca);
+			switch (c.getKind())
+			{
+				case ADDED:
+					g2d.setColor(addedColor);
+					g2d.draw(new Ellipse2D.Double(aX - r, aY - r, 2 * r, 2 * r));
+					g2d.draw(new Line2D.Double(aX - r / 2, aY, aX + r / 2, aY));
+					g2d.draw(new Line2D.Double(aX, aY - r / 2, aX, aY + r / 2));
+					break;
+				case REMOVED:
+					g2d.setColor(removedColor);
+					g2d.draw(new Line2D.Double(bX - r, bY - r, bX + r, bY + r));
+					g2d.draw(new Line2D.Double(bX - r, bY + r, bX + r, bY - r));
+					break;
+				case MOVED:
+					g2d.setColor(movedColor);
+					g2d.draw(new Line2D.Double(bX, bY, aX, aY));
+					g2d.draw(new Ellipse2D.Double(aX - r, aY - r, 2 * r, 2 * r));
+					break;
+				case MODIFIED:
+					g2d.setColor(modifiedColor);
+					g2d.draw(new Ellipse2D.Double(bX - r, bY - r, 2 * r, 2 * r));
+					break;
+			}
+		}
+	}
+	private double markerSize(double sca)
+	{
+		return pointMult * Math.sqrt(sca * sca + 1.5);
+	}
+	private Rectangle markerBounds(int x, int y)
+	{
+		double sca = scale;
+		double size = markerSize(sca) * 1.5;
+		double pX = imgPanel.getWidth() / 2.0 + (x - xPos) * sca;
+		double pY = imgPanel.getHeight() / 2.0 + (y - yPos) * sca;
+		
+		int reach = (int) Math.ceil(size / 2) + 3;
+		int labelWidth = imgPanel.getFont().getSize() * 4;
+		int labelHeight = imgPanel.getFont().getSize() * 2;
+		return new Rectangle((int) Math.floor(pX) - reach, (int) Math.floor(pY) - reach - labelHeight,
+				2 * reach + labelWidth, 2 * reach + labelHeight);
+	}
+	private void requestRepaint()
+	{
+		overlayLayer.invalidateAll();
+		repaintScheduler.repaint();
+	}
+	private void requestRepaint(Rectangle region)
+	{
+		overlayLayer.invalidate(region);
+		repaintScheduler.repaint(region);
+		if (showStatistics)
+			repaintScheduler.repaint(statistics.getOverlayBounds(imgPanel));
+	}
+	private void rebuildObjectIndices()
+	{
+		objectGrid.rebuild(objectArr, imgWidth, imgHeight);
+		clusterIndex.resize(imgWidth, imgHeight);
+		rebuildFilteredIndices();
+	}
+	private void rebuildFilteredIndices()
+	{
+		stackCounts.clear();
+		clusterIndex.clear();
+		shownObjectCount = 0;
+		if (objectArr == null)
+			return;
+		
+		for (MDirectObject obj: objectArr)
+		{
+			if (isExclusive(obj.getContainer(), showFilter))
+				countObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0xFFFF & obj.getType());
+		}
+	}
+	private void countObject(int x, int y, int type)
+	{
+		stackCounts.increment(x, y);
+		clusterIndex.add(x, y, type);
+		shownObjectCount++;
+	}
+	private void uncountObject(int x, int y, int type)
+	{
+		stackCounts.decrement(x, y);
+		clusterIndex.remove(x, y, type);
+		shownObjectCount--;
+	}
+	private Color getStackStringColor(int alpha)
+	{
+		alpha = (alpha < 0)?0:((alpha > 255)?255:alpha);
+		Color ret = stackStringColors[alpha];
+		if (ret == null)
+		{
+			ret = new Color(stackStringColor.getRed(), stackStringColor.getGreen(), stackStringColor.getBlue(), alpha);
+			stackStringColors[alpha] = ret;
+		}
+		return ret;
+	}
+	private GlyphVector getStackLabel(int n, FontRenderContext frc)
+	{
+		if (!frc.equals(stackLabelContext))
+		{
+			stackLabelContext = frc;
+			Arrays.fill(stackLabels, null);
+		}
+		if (n >= stackLabels.length)
+			stackLabels = Arrays.copyOf(stackLabels, Math.max(n + 1, stackLabels.length * 2));
+		
+		GlyphVector ret = stackLabels[n];
+		if (ret == null)
+		{
+			ret = imgPanel.getFont().createGlyphVector(frc, Integer.toString(n));
+			stackLabels[n] = ret;
+		}
+		return ret;
+	}
 	private AffineTransform createTransform(int panelWidth, int panelHeight)
 	{
 		return createTransform(panelWidth, panelHeight, scale);
 	}
 	private AffineTransform createTransform(int panelWidth, int panelHeight, double scale)
+	{
+		return createTransform(panelWidth, panelHeight, scale, xPos, yPos);
+	}
+	private AffineTransform createTransform(int panelWidth, int panelHeight, double scale, double x, double y)
 	{
 		double pW = panelWidth / 2.0;
 		double pH = panelHeight / 2.0;
@@ -1401,7 +1704,7 @@ class StageDisplay
 		AffineTransform ret = new AffineTransform();
 		ret.translate(pW, pH);
 		ret.scale(scale, scale);
-		ret.translate(-xPos, -yPos);
+		ret.translate(-x, -y);
 		
 		return ret;
 	}
@@ -1503,6 +1806,10 @@ class StageDisplay
 	{
 		return maxScale;
 	}
+	public double getClusterScale()
+	{
+		return clusterScale;
+	}
 	public BufferedImage getImage()
 	{
 		return img;
@@ -1511,11 +1818,24 @@ class StageDisplay
 	{
 		return objectArr;
 	}
+	public ObjectPalette getPalette()
+	{
+		return palette;
+	}
+	public RenderStatistics getStatistics()
+	{
+		return statistics;
+	}
+	public boolean isShowingStatistics()
+	{
+		return showStatistics;
+	}
 	
 	public void setSelectedObject(MDirectObject obj)
 	{
 		selectedObj = obj;
 		updateDescriptionPanel();
+		requestRepaint();
 	}
 	public void setScale(double scale)
 	{
@@ -1529,16 +1849,165 @@ class StageDisplay
 	{
 		this.maxScale = maxScale;
 	}
+	public void setMarkerAtlas(MarkerAtlas atlas)
+	{
+		markerAtlas = atlas;
+		palette = atlas.getPalette();
+		requestRepaint();
+	}
+	public void setClusterScale(double clusterScale)
+	{
+		this.clusterScale = clusterScale;
+		requestRepaint();
+	}
 	public void setImage(BufferedImage img)
 	{
 		this.img = img;
-		limitCoords(img.getWidth(), img.getHeight());
+		if (img == null)
+		{
+			imagePyramid = null;
+			frameBuffer.release();
+			overlayLayer.release();
+			repaintScheduler.repaint();
+			return;
+		}
+		
+		imgWidth = img.getWidth();
+		imgHeight = img.getHeight();
+		imagePyramid = new StageImagePyramid(applyImagePalette(img));
+		rebuildObjectIndices();
+		limitCoords(imgWidth, imgHeight);
+		frameBuffer.invalidateAll();
+		requestRepaint();
+	}
+	public boolean setImagePalette(int[] palette)
+	{
+		if ((img == null) || !IndexedImages.isIndexed(img))
+			return false;
+		
+		imagePalette = (palette == null)?null:palette.clone();
+		imagePaletteBase = IndexedImages.getPalette(img);
+		imagePyramid = new StageImagePyramid(applyImagePalette(img));
+		frameBuffer.invalidateAll();
+		requestRepaint();
+		return true;
+	}
+	public int[] getImagePalette()
+	{
+		if ((img == null) || !IndexedImages.isIndexed(img))
+			return null;
+		return (imagePalette != null)?imagePalette.clone():IndexedImages.getPalette(img);
+	}
+	private int indexOfObject(MDirectObject obj)
+	{
+		for (int i = 0, n = objectArr.size(); i < n; i++)
+		{
+			if (objectArr.get(i) == obj)
+				return i;
+		}
+		return -1;
+	}
+	static MDirectObject copyObject(MDirectObject obj)
+	{
+		MDirectObject ret = new MDirectObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0, obj.getType(),
+				obj.getData().clone(), obj.getContainer());
+		ret.setAllocationAddress(obj.getAllocationAddress());
+		return ret;
+	}
+	private BufferedImage applyImagePalette(BufferedImage image)
+	{
+		//a preview palette only applies to the stage image it was made for
+		if ((imagePalette == null) || !IndexedImages.isIndexed(image)
+				|| !Arrays.equals(IndexedImages.getPalette(image), imagePaletteBase)
+				|| (imagePaletteBase.length != imagePalette.length))
+			return image;
+		return IndexedImages.withPalette(image, imagePalette);
 	}
 	public void setObjects(ArrayList<MDirectObject> objArr)
 	{
 		selectedObj = null;
 		objectArr = objArr;
+		modified = false;
+		rebuildObjectIndices();
+		updateDescriptionPanel();
+		requestRepaint();
+	}
+	public void setDiff(List<ObjectDiff.Change> changes)
+	{
+		diff = changes;
+		requestRepaint();
+	}
+	public List<ObjectDiff.Change> getDiff()
+	{
+		return diff;
+	}
+	public void setEditListener(StageEditListener listener)
+	{
+		editListener = listener;
+	}
+	public boolean isModified()
+	{
+		return modified;
+	}
+	public void setModified(boolean modified)
+	{
+		this.modified = modified;
+	}
+	public void setShowStatistics(boolean show)
+	{
+		showStatistics = show;
+		repaintScheduler.repaint();
+	}
+	public void insertObject(int index, MDirectObject obj)
+	{
+		objectArr.add(index, obj);
+		objectGrid.add(obj);
+		if (isExclusive(obj.getContainer(), showFilter))
+			countObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0xFFFF & obj.getType());
+		modified = true;
+		if (editListener != null)
+			editListener.objectAdded(index, obj);
+		requestRepaint();
+	}
+	public void removeObjectAt(int index)
+	{
+		removeObject(objectArr.get(index));
+	}
+	public void editObject(int index, Consumer<MDirectObject> change)
+	{
+		MDirectObject obj = objectArr.get(index);
+		MDirectObject previous = copyObject(obj);
+		if (isExclusive(obj.getContainer(), showFilter))
+			uncountObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0xFFFF & obj.getType());
+		
+		change.accept(obj);
+		
+		if ((obj.getAbsoluteX() != previous.getAbsoluteX()) || (obj.getAbsoluteY() != previous.getAbsoluteY()))
+			objectGrid.move(obj, previous.getAbsoluteX(), previous.getAbsoluteY());
+		if (isExclusive(obj.getContainer(), showFilter))
+			countObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0xFFFF & obj.getType());
+		modified = true;
+		if (editListener != null)
+			editListener.objectEdited(index, obj, previous);
+		updateDescriptionPanel();
+		requestRepaint();
+	}
+	public void removeObject(MDirectObject obj)
+	{
+		int index = indexOfObject(obj);
+		if (index < 0)
+			return;
+		objectArr.remove(index);
+		modified = true;
+		if (editListener != null)
+			editListener.objectRemoved(index, obj);
+		
+		objectGrid.remove(obj);
+		if (isExclusive(obj.getContainer(), showFilter))
+			uncountObject(obj.getAbsoluteX(), obj.getAbsoluteY(), 0xFFFF & obj.getType());
+		if (selectedObj == obj)
+			selectedObj = null;
 		updateDescriptionPanel();
-		imgPanel.repaint();
+		requestRepaint();
 	}
 }
@@ -0,0 +1,12 @@
+package moonwalker.object_editor.gui;
+
+import moonwalker.core.structures.MDirectObject;
+
+interface StageEditListener
+{
+	void objectAdded(int index, MDirectObject obj);
+	void objectRemoved(int index, MDirectObject obj);
+	void objectMoved(int index, MDirectObject obj, int prevX, int prevY);
+	void dragFinished(int index, MDirectObject obj);
+	void objectEdited(int index, MDirectObject obj, MDirectObject previous);
+}
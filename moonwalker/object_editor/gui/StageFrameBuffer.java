@@ -0,0 +1,104 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+class StageFrameBuffer
+{
+	private final static double scrollTolerance = 1e-3;
+	
+	private BufferedImage buffer;
+	private final DirtyRegions invalidRegions;
+	private boolean fullyInvalid;
+	private double lastScale, lastX, lastY;
+	
+	public StageFrameBuffer()
+	{
+		invalidRegions = new DirtyRegions();
+		fullyInvalid = true;
+	}
+	
+	public void invalidate(Rectangle region)
+	{
+		if (!fullyInvalid)
+			invalidRegions.add(region);
+	}
+	public void invalidateAll()
+	{
+		fullyInvalid = true;
+		invalidRegions.clear();
+	}
+	
+	public ArrayList<Rectangle> prepare(GraphicsConfiguration gc, int width, int height,
+			double scale, double xPos, double yPos)
+	{
+		if ((buffer == null) || (buffer.getWidth() != width) || (buffer.getHeight() != height))
+		{
+			buffer = (gc == null)
+					?new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+					:gc.createCompatibleImage(width, height, Transparency.OPAQUE);
+			invalidateAll();
+		}
+		else if (!fullyInvalid && ((scale != lastScale) || (xPos != lastX) || (yPos != lastY)))
+			scroll(width, height, scale, xPos, yPos);
+		
+		lastScale = scale;
+		lastX = xPos;
+		lastY = yPos;
+		
+		if (fullyInvalid)
+		{
+			fullyInvalid = false;
+			invalidRegions.clear();
+			invalidRegions.add(new Rectangle(0, 0, width, height));
+		}
+		return invalidRegions.list();
+	}
+	private void scroll(int width, int height, double scale, double xPos, double yPos)
+	{
+		double shiftX = (lastX - xPos) * scale;
+		double shiftY = (lastY - yPos) * scale;
+		int dx = (int) Math.round(shiftX);
+		int dy = (int) Math.round(shiftY);
+		
+		if ((scale != lastScale) || (Math.abs(shiftX - dx) > scrollTolerance) || (Math.abs(shiftY - dy) > scrollTolerance)
+				|| (Math.abs(dx) >= width) || (Math.abs(dy) >= height))
+		{
+			invalidateAll();
+			return;
+		}
+		
+		Graphics2D g2d = buffer.createGraphics();
+		g2d.copyArea(0, 0, width, height, dx, dy);
+		g2d.dispose();
+		
+		invalidRegions.translate(dx, dy);
+		
+		if (dx > 0)
+			invalidate(new Rectangle(0, 0, dx, height));
+		else if (dx < 0)
+			invalidate(new Rectangle(width + dx, 0, -dx, height));
+		if (dy > 0)
+			invalidate(new Rectangle(0, 0, width, dy));
+		else if (dy < 0)
+			invalidate(new Rectangle(0, height + dy, width, -dy));
+	}
+	public void validated()
+	{
+		invalidRegions.clear();
+	}
+	public void release()
+	{
+		buffer = null;
+		invalidateAll();
+	}
+	
+	public BufferedImage getBuffer()
+	{
+		return buffer;
+	}
+}
@@ -0,0 +1,86 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+class StageImageCache
+{
+	private final LinkedHashMap<Integer, BufferedImage> images;
+	private final IntConsumer evictionListener;
+	private final IntPredicate pinned;
+	private long size, maxSize;
+	
+	public StageImageCache(long maxBytes, IntConsumer evictionListener, IntPredicate pinned)
+	{
+		images = new LinkedHashMap<>(16, 0.75f, true);
+		this.evictionListener = evictionListener;
+		this.pinned = pinned;
+		maxSize = maxBytes;
+	}
+	
+	public BufferedImage get(int stage)
+	{
+		return images.get(stage);
+	}
+	public boolean contains(int stage)
+	{
+		return images.containsKey(stage);
+	}
+	public boolean fits(long bytes)
+	{
+		return size + bytes <= maxSize;
+	}
+	public void put(int stage, BufferedImage img)
+	{
+		BufferedImage prev = images.put(stage, img);
+		if (prev != null)
+			size -= imageBytes(prev);
+		size += imageBytes(img);
+		trim();
+	}
+	public void clear()
+	{
+		images.clear();
+		size = 0;
+	}
+	
+	public void trim()
+	{
+		//the most recently used image is always kept, even if it alone exceeds the limit
+		//a pinned image stays as well, it is still displayed and would not free any memory
+		Iterator<Map.Entry<Integer, BufferedImage>> it = images.entrySet().iterator();
+		for (int left = images.size(); (size > maxSize) && (left > 1); left--)
+		{
+			Map.Entry<Integer, BufferedImage> eldest = it.next();
+			if (pinned.test(eldest.getKey()))
+				continue;
+			size -= imageBytes(eldest.getValue());
+			it.remove();
+			evictionListener.accept(eldest.getKey());
+		}
+	}
+	static long imageBytes(BufferedImage img)
+	{
+		DataBuffer db = img.getRaster().getDataBuffer();
+		return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+	
+	public long getSize()
+	{
+		return size;
+	}
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+	public void setMaxSize(long bytes)
+	{
+		maxSize = bytes;
+		trim();
+	}
+}
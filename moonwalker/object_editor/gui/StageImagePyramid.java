@@ -0,0 +1,221 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class StageImagePyramid
+{
+	private final static int tileSize = 256;
+	private final static long defaultCacheSize = 32L * 1024 * 1024;
+	
+	private final BufferedImage source;
+	private final int[] levelWidth, levelHeight;
+	private final LinkedHashMap<Long, BufferedImage> tileCache;
+	private long cacheSize, maxCacheSize;
+	
+	public StageImagePyramid(BufferedImage image)
+	{
+		source = image;
+		maxCacheSize = defaultCacheSize;
+		
+		int levels = 1;
+		for (int w = image.getWidth(), h = image.getHeight(); (w > tileSize) || (h > tileSize); levels++)
+		{
+			w = (w + 1) / 2;
+			h = (h + 1) / 2;
+		}
+		levelWidth = new int[levels];
+		levelHeight = new int[levels];
+		levelWidth[0] = image.getWidth();
+		levelHeight[0] = image.getHeight();
+		for (int i = 1; i < levels; i++)
+		{
+			levelWidth[i] = (levelWidth[i - 1] + 1) / 2;
+			levelHeight[i] = (levelHeight[i - 1] + 1) / 2;
+		}
+		
+		tileCache = new LinkedHashMap<>(64, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest)
+			{
+				if (cacheSize > maxCacheSize)
+				{
+					cacheSize -= tileBytes(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public int levelFor(double scale)
+	{
+		int level = (int) Math.round(Math.log(1 / scale) / Math.log(2));
+		return (level < 0)?0:((level >= levelWidth.length)?(levelWidth.length - 1):level);
+	}
+	
+	public int draw(Graphics2D g2d, Rectangle clip, double scale, double xPos, double yPos,
+			int panelWidth, int panelHeight)
+	{
+		int level = levelFor(scale);
+		int factor = 1 << level;
+		double levelScale = scale * factor;
+		double offsetX = panelWidth / 2.0 - xPos * scale;
+		double offsetY = panelHeight / 2.0 - yPos * scale;
+		
+		if (level == 0)
+			return drawSourceRegion(g2d, clip, scale, offsetX, offsetY);
+		
+		int startCol = Math.max(0, (int) Math.floor((clip.x - offsetX) / levelScale / tileSize));
+		int endCol = Math.min((levelWidth[level] - 1) / tileSize,
+				(int) Math.floor((clip.x + clip.width - offsetX) / levelScale / tileSize));
+		int startRow = Math.max(0, (int) Math.floor((clip.y - offsetY) / levelScale / tileSize));
+		int endRow = Math.min((levelHeight[level] - 1) / tileSize,
+				(int) Math.floor((clip.y + clip.height - offsetY) / levelScale / tileSize));
+		
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		
+		int tilesDrawn = 0;
+		for (int row = startRow; row <= endRow; row++)
+		{
+			for (int col = startCol; col <= endCol; col++)
+			{
+				BufferedImage tile = getTile(level, col, row);
+				int x1 = (int) Math.round(offsetX + col * tileSize * levelScale);
+				int y1 = (int) Math.round(offsetY + row * tileSize * levelScale);
+				int x2 = (int) Math.round(offsetX + (col * tileSize + tile.getWidth()) * levelScale);
+				int y2 = (int) Math.round(offsetY + (row * tileSize + tile.getHeight()) * levelScale);
+				
+				g2d.drawImage(tile, x1, y1, x2, y2, 0, 0, tile.getWidth(), tile.getHeight(), null);
+				tilesDrawn++;
+			}
+		}
+		return tilesDrawn;
+	}
+	
+	private int drawSourceRegion(Graphics2D g2d, Rectangle clip, double scale, double offsetX, double offsetY)
+	{
+		int sx1 = Math.max(0, (int) Math.floor((clip.x - offsetX) / scale));
+		int sy1 = Math.max(0, (int) Math.floor((clip.y - offsetY) / scale));
+		int sx2 = Math.min(levelWidth[0], (int) Math.ceil((clip.x + clip.width - offsetX) / scale));
+		int sy2 = Math.min(levelHeight[0], (int) Math.ceil((clip.y + clip.height - offsetY) / scale));
+		if ((sx1 >= sx2) || (sy1 >= sy2))
+			return 0;
+		
+		int dx1 = (int) Math.round(offsetX + sx1 * scale);
+		int dy1 = (int) Math.round(offsetY + sy1 * scale);
+		int dx2 = (int) Math.round(offsetX + sx2 * scale);
+		int dy2 = (int) Math.round(offsetY + sy2 * scale);
+		
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2d.drawImage(source, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null);
+		return 1;
+	}
+	private BufferedImage getTile(int level, int col, int row)
+	{
+		long key = ((long) level << 48) | ((long) row << 24) | col;
+		BufferedImage tile = tileCache.get(key);
+		if (tile == null)
+		{
+			tile = buildTile(level, col, row);
+			cacheSize += tileBytes(tile);
+			tileCache.put(key, tile);
+		}
+		return tile;
+	}
+	private BufferedImage buildTile(int level, int col, int row)
+	{
+		int x = col * tileSize;
+		int y = row * tileSize;
+		int w = Math.min(tileSize, levelWidth[level] - x);
+		int h = Math.min(tileSize, levelHeight[level] - y);
+		
+		int sx = x * 2;
+		int sy = y * 2;
+		int sw = Math.min(w * 2, levelWidth[level - 1] - sx);
+		int sh = Math.min(h * 2, levelHeight[level - 1] - sy);
+		int[] src = readRegion(level - 1, sx, sy, sw, sh);
+		
+		BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		int[] dst = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+		for (int j = 0; j < h; j++)
+		{
+			int r0 = (j * 2) * sw;
+			int r1 = Math.min(j * 2 + 1, sh - 1) * sw;
+			for (int i = 0; i < w; i++)
+			{
+				int i0 = i * 2;
+				int i1 = Math.min(i0 + 1, sw - 1);
+				dst[j * w + i] = average(src[r0 + i0], src[r0 + i1], src[r1 + i0], src[r1 + i1]);
+			}
+		}
+		return tile;
+	}
+	private int[] readRegion(int level, int x, int y, int width, int height)
+	{
+		if (level == 0)
+		{
+			BufferedImage region = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2d = region.createGraphics();
+			g2d.drawImage(source, 0, 0, width, height, x, y, x + width, y + height, null);
+			g2d.dispose();
+			return ((DataBufferInt) region.getRaster().getDataBuffer()).getData();
+		}
+		
+		int[] ret = new int[width * height];
+		for (int row = y / tileSize; row * tileSize < y + height; row++)
+		{
+			for (int col = x / tileSize; col * tileSize < x + width; col++)
+			{
+				BufferedImage tile = getTile(level, col, row);
+				int[] data = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+				int tw = tile.getWidth();
+				int x0 = Math.max(x, col * tileSize);
+				int x1 = Math.min(x + width, col * tileSize + tw);
+				int y0 = Math.max(y, row * tileSize);
+				int y1 = Math.min(y + height, row * tileSize + tile.getHeight());
+				for (int j = y0; j < y1; j++)
+				{
+					System.arraycopy(data, (j - row * tileSize) * tw + (x0 - col * tileSize),
+							ret, (j - y) * width + (x0 - x), x1 - x0);
+				}
+			}
+		}
+		return ret;
+	}
+	private static int average(int p1, int p2, int p3, int p4)
+	{
+		int a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24, a4 = p4 >>> 24;
+		int aSum = a1 + a2 + a3 + a4;
+		if (aSum == 0)
+			return 0;
+		
+		int r = (((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3 + ((p4 >> 16) & 0xFF) * a4) / aSum;
+		int g = (((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3 + ((p4 >> 8) & 0xFF) * a4) / aSum;
+		int b = ((p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3 + (p4 & 0xFF) * a4) / aSum;
+		return ((aSum / 4) << 24) | (r << 16) | (g << 8) | b;
+	}
+	private static long tileBytes(BufferedImage tile)
+	{
+		return 4L * tile.getWidth() * tile.getHeight();
+	}
+	
+	public BufferedImage getSource()
+	{
+		return source;
+	}
+	public long getCacheSize()
+	{
+		return cacheSize;
+	}
+	public void setMaxCacheSize(long bytes)
+	{
+		maxCacheSize = bytes;
+	}
+}
@@ -0,0 +1,169 @@
+package moonwalker.object_editor.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import moonwalker.core.structures.MDirectObject;
+
+class StageObjectGrid
+{
+	private final static int cellSize = 64;
+	
+	private ArrayList<MDirectObject>[] cells;
+	private int columns, rows;
+	private int objectCount;
+	
+	public StageObjectGrid(int width, int height)
+	{
+		resize(width, height);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void resize(int width, int height)
+	{
+		columns = Math.max(1, (width + cellSize - 1) / cellSize);
+		rows = Math.max(1, (height + cellSize - 1) / cellSize);
+		cells = new ArrayList[columns * rows];
+		objectCount = 0;
+	}
+	
+	public void rebuild(List<MDirectObject> objects, int width, int height)
+	{
+		resize(width, height);
+		if (objects != null)
+		{
+			for (MDirectObject obj: objects)
+				add(obj);
+		}
+	}
+	public void add(MDirectObject obj)
+	{
+		int index = cellIndex(obj.getAbsoluteX(), obj.getAbsoluteY());
+		ArrayList<MDirectObject> cell = cells[index];
+		if (cell == null)
+		{
+			cell = new ArrayList<>(4);
+			cells[index] = cell;
+		}
+		cell.add(obj);
+		objectCount++;
+	}
+	public boolean remove(MDirectObject obj)
+	{
+		return removeFromCell(obj, cellIndex(obj.getAbsoluteX(), obj.getAbsoluteY()));
+	}
+	public void move(MDirectObject obj, int prevX, int prevY)
+	{
+		int prevIndex = cellIndex(prevX, prevY);
+		int index = cellIndex(obj.getAbsoluteX(), obj.getAbsoluteY());
+		if (prevIndex == index)
+			return;
+		
+		if (removeFromCell(obj, prevIndex))
+			add(obj);
+	}
+	private boolean removeFromCell(MDirectObject obj, int index)
+	{
+		ArrayList<MDirectObject> cell = cells[index];
+		if (cell == null)
+			return false;
+		
+		for (int i = 0; i < cell.size(); i++)
+		{
+			if (cell.get(i) == obj)
+			{
+				cell.remove(i);
+				objectCount--;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void forEachInRange(double minX, double minY, double maxX, double maxY, Consumer<MDirectObject> action)
+	{
+		int startCol = column(minX);
+		int endCol = column(maxX);
+		int startRow = row(minY);
+		int endRow = row(maxY);
+		
+		for (int r = startRow; r <= endRow; r++)
+		{
+			int rowOffset = r * columns;
+			for (int c = startCol; c <= endCol; c++)
+			{
+				ArrayList<MDirectObject> cell = cells[rowOffset + c];
+				if (cell == null)
+					continue;
+				
+				for (int i = 0, l = cell.size(); i < l; i++)
+				{
+					MDirectObject obj = cell.get(i);
+					int x = obj.getAbsoluteX();
+					int y = obj.getAbsoluteY();
+					if ((x >= minX) && (x <= maxX) && (y >= minY) && (y <= maxY))
+						action.accept(obj);
+				}
+			}
+		}
+	}
+	public MDirectObject findNearest(double x, double y, double maxDistance, Predicate<MDirectObject> filter)
+	{
+		int startCol = column(x - maxDistance);
+		int endCol = column(x + maxDistance);
+		int startRow = row(y - maxDistance);
+		int endRow = row(y + maxDistance);
+		
+		MDirectObject ret = null;
+		double threshold = maxDistance;
+		
+		for (int r = startRow; r <= endRow; r++)
+		{
+			int rowOffset = r * columns;
+			for (int c = startCol; c <= endCol; c++)
+			{
+				ArrayList<MDirectObject> cell = cells[rowOffset + c];
+				if (cell == null)
+					continue;
+				
+				for (int i = 0, l = cell.size(); i < l; i++)
+				{
+					MDirectObject obj = cell.get(i);
+					if (!filter.test(obj))
+						continue;
+					
+					double dx = obj.getAbsoluteX() - x;
+					double dy = obj.getAbsoluteY() - y;
+					double dist = Math.sqrt(dx * dx + dy * dy);
+					if (dist > threshold)
+						continue;
+					
+					ret = obj;
+					threshold = dist;
+				}
+			}
+		}
+		return ret;
+	}
+	
+	public int getObjectCount()
+	{
+		return objectCount;
+	}
+	
+	private int cellIndex(int x, int y)
+	{
+		return row(y) * columns + column(x);
+	}
+	private int column(double x)
+	{
+		int c = (int) Math.floor(x / cellSize);
+		return (c < 0)?0:((c >= columns)?(columns - 1):c);
+	}
+	private int row(double y)
+	{
+		int r = (int) Math.floor(y / cellSize);
+		return (r < 0)?0:((r >= rows)?(rows - 1):r);
+	}
+}
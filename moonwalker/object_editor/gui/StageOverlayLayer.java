@@ -0,0 +1,100 @@
+package moonwalker.object_editor.gui;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+class StageOverlayLayer
+{
+	private final static int margin = 192;
+	
+	private BufferedImage layer;
+	private final DirtyRegions invalidRegions;
+	private boolean fullyInvalid;
+	private int panelWidth, panelHeight;
+	private double anchorX, anchorY, anchorScale;
+	private int drawX, drawY;
+	
+	public StageOverlayLayer()
+	{
+		invalidRegions = new DirtyRegions();
+		fullyInvalid = true;
+	}
+	
+	public void invalidate(Rectangle screenRegion)
+	{
+		if (!fullyInvalid)
+			invalidRegions.add(new Rectangle(screenRegion.x - drawX, screenRegion.y - drawY,
+					screenRegion.width, screenRegion.height));
+	}
+	public void invalidateAll()
+	{
+		fullyInvalid = true;
+		invalidRegions.clear();
+	}
+	
+	public ArrayList<Rectangle> prepare(GraphicsConfiguration gc, int width, int height,
+			double scale, double xPos, double yPos)
+	{
+		if ((layer == null) || (width != panelWidth) || (height != panelHeight))
+		{
+			panelWidth = width;
+			panelHeight = height;
+			layer = (gc == null)
+					?new BufferedImage(width + 2 * margin, height + 2 * margin, BufferedImage.TYPE_INT_ARGB_PRE)
+					:gc.createCompatibleImage(width + 2 * margin, height + 2 * margin, Transparency.TRANSLUCENT);
+			fullyInvalid = true;
+		}
+		
+		double shiftX = (anchorX - xPos) * scale;
+		double shiftY = (anchorY - yPos) * scale;
+		if ((scale != anchorScale) || (Math.abs(shiftX) > margin) || (Math.abs(shiftY) > margin))
+			fullyInvalid = true;
+		
+		if (fullyInvalid)
+		{
+			fullyInvalid = false;
+			anchorX = xPos;
+			anchorY = yPos;
+			anchorScale = scale;
+			shiftX = 0;
+			shiftY = 0;
+			invalidRegions.clear();
+			invalidRegions.add(new Rectangle(0, 0, layer.getWidth(), layer.getHeight()));
+		}
+		drawX = (int) Math.round(shiftX) - margin;
+		drawY = (int) Math.round(shiftY) - margin;
+		return invalidRegions.list();
+	}
+	public void validated()
+	{
+		invalidRegions.clear();
+	}
+	public void release()
+	{
+		layer = null;
+	}
+	
+	public double getOffsetX()
+	{
+		return panelWidth / 2.0 + margin - anchorX * anchorScale;
+	}
+	public double getOffsetY()
+	{
+		return panelHeight / 2.0 + margin - anchorY * anchorScale;
+	}
+	public int getDrawX()
+	{
+		return drawX;
+	}
+	public int getDrawY()
+	{
+		return drawY;
+	}
+	public BufferedImage getLayer()
+	{
+		return layer;
+	}
+}
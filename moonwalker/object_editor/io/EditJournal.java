@@ -0,0 +1,391 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import moonwalker.core.structures.MDirectObject;
+
+public class EditJournal
+{
+	private final static int magic = 0x4D57454A;
+	private final static int formatVersion = 2;
+	private final static int headerSize = 20;
+	private final static int initialSize = 64 * 1024;
+	private final static String extension = ".mwj";
+	
+	private final static byte opAdd = 1;
+	private final static byte opRemove = 2;
+	private final static byte opMove = 3;
+	private final static byte opEdit = 4;
+	
+	private final static ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, r ->
+	{
+		Thread t = new Thread(r, "Edit journal flush");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private final FileChannel channel;
+	private final CRC32 crc;
+	private final byte[] record;
+	private final ScheduledFuture<?> flushTask;
+	private MappedByteBuffer buffer;
+	private int end;
+	private int lastMove;
+	private int recordCount;
+	private boolean dirty;
+	
+	private EditJournal(FileChannel fc, long flushIntervalMillis) throws IOException
+	{
+		channel = fc;
+		crc = new CRC32();
+		record = new byte[256 + 32];
+		buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, fc.size()));
+		end = headerSize;
+		lastMove = -1;
+		flushTask = flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	public static Path getDefaultDirectory()
+	{
+		return Path.of(System.getProperty("user.home"), ".moonwalker_object_editor", "journal");
+	}
+	public static Path fileFor(Path directory, Path rom)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(rom.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i] & 0xFF));
+			return directory.resolve(sb.append(extension).toString());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static EditJournal open(Path file, byte[] romContent, long flushIntervalMillis) throws IOException
+	{
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try
+		{
+			EditJournal ret = new EditJournal(fc, flushIntervalMillis);
+			if (!ret.matches(romContent.length, romCrc(romContent)))
+				ret.rebase(romContent.length, romCrc(romContent), ret.end);
+			else
+				ret.scan();
+			return ret;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			fc.close();
+			throw e;
+		}
+	}
+	
+	private boolean matches(int romLength, long romCrc)
+	{
+		return (buffer.getInt(0) == magic) && (buffer.getInt(4) == formatVersion)
+				&& (buffer.getInt(8) == romLength) && (buffer.getLong(12) == romCrc);
+	}
+	private void scan()
+	{
+		//the journal ends at the first record that is missing or torn
+		end = headerSize;
+		recordCount = 0;
+		for (int len; (len = recordLength(end)) > 0; end += len)
+			recordCount++;
+	}
+	private int recordLength(int pos)
+	{
+		if (pos + 8 > buffer.capacity())
+			return 0;
+		byte op = buffer.get(pos);
+		int len;
+		if ((op == opRemove) || (op == opMove))
+			len = (op == opMove)?16:12;
+		else if ((op == opAdd) || (op == opEdit))
+		{
+			int objectPos = pos + ((op == opAdd)?4:12);
+			if (objectPos + 10 > buffer.capacity())
+				return 0;
+			len = objectPos - pos + 10 + (buffer.get(objectPos + 9) & 0xFF);
+		}
+		else
+			return 0;
+		
+		if (pos + len + 4 > buffer.capacity())
+			return 0;
+		crc.reset();
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(pos).limit(pos + len);
+		crc.update(slice);
+		return (buffer.getInt(pos + len) == (int) crc.getValue())?(len + 4):0;
+	}
+	public static long romCrc(byte[] romContent)
+	{
+		CRC32 ret = new CRC32();
+		ret.update(romContent);
+		return ret.getValue();
+	}
+	
+	public synchronized int getRecordCount()
+	{
+		return recordCount;
+	}
+	public synchronized int replay(ArrayList<MDirectObject>[] objects)
+	{
+		int applied = 0;
+		for (int pos = headerSize, len; (len = recordLength(pos)) > 0; pos += len, applied++)
+		{
+			byte op = buffer.get(pos);
+			int stage = buffer.get(pos + 1) & 0xFF;
+			int index = buffer.getShort(pos + 2) & 0xFFFF;
+			ArrayList<MDirectObject> list = (stage < objects.length)?objects[stage]:null;
+			if ((list == null) || ((op == opAdd)?(index > list.size()):(index >= list.size()))
+					|| ((op != opAdd) && !isExpected(pos, list.get(index))))
+			{
+				//a record that does not fit the objects ends the journal, later edits are appended in its place;
+				//the order of the objects may change when the rom is saved and loaded again,
+				//so every record but an add also names the object it expects at its index
+				buffer.put(pos, (byte) 0);
+				scan();
+				dirty = true;
+				break;
+			}
+			
+			if (op == opAdd)
+				list.add(index, readObject(pos + 4));
+			else if (op == opRemove)
+				list.remove(index);
+			else if (op == opMove)
+				list.get(index).setAbsolutePosition(buffer.getShort(pos + 12) & 0xFFFF, buffer.getShort(pos + 14) & 0xFFFF);
+			else
+			{
+				MDirectObject src = readObject(pos + 12);
+				MDirectObject obj = list.get(index);
+				obj.setAbsolutePosition(src.getAbsoluteX(), src.getAbsoluteY());
+				obj.setType(src.getType());
+				obj.setAllocationAddress(src.getAllocationAddress());
+				obj.setContainer(src.getContainer());
+				obj.setData(src.getData());
+			}
+		}
+		return applied;
+	}
+	private boolean isExpected(int pos, MDirectObject obj)
+	{
+		return (obj.getAbsoluteX() == (buffer.getShort(pos + 4) & 0xFFFF)) && (obj.getAbsoluteY() == (buffer.getShort(pos + 6) & 0xFFFF))
+				&& (obj.getType() == buffer.getShort(pos + 8)) && (obj.getAllocationAddress() == (buffer.getShort(pos + 10) & 0xFFFF));
+	}
+	private MDirectObject readObject(int pos)
+	{
+		int x = buffer.getShort(pos) & 0xFFFF;
+		int y = buffer.getShort(pos + 2) & 0xFFFF;
+		short type = buffer.getShort(pos + 4);
+		int addr = buffer.getShort(pos + 6) & 0xFFFF;
+		MDirectObject.Container container = MDirectObject.Container.values()[buffer.get(pos + 8)];
+		byte[] data = new byte[buffer.get(pos + 9) & 0xFF];
+		for (int i = 0; i < data.length; i++)
+			data[i] = buffer.get(pos + 10 + i);
+		
+		MDirectObject ret = new MDirectObject(x, y, 0, type, data, container);
+		ret.setAllocationAddress(addr);
+		return ret;
+	}
+	
+	public synchronized void objectAdded(int stage, int index, MDirectObject obj)
+	{
+		encodeHeader(opAdd, stage, index);
+		append(encodeObject(4, obj));
+	}
+	public synchronized void objectRemoved(int stage, int index, MDirectObject removed)
+	{
+		encodeHeader(opRemove, stage, index);
+		encodeExpected(removed.getAbsoluteX(), removed.getAbsoluteY(), removed);
+		append(12);
+	}
+	public synchronized void objectMoved(int stage, int index, MDirectObject obj, int prevX, int prevY)
+	{
+		encodeHeader(opMove, stage, index);
+		encodeExpected(prevX, prevY, obj);
+		putShort(12, obj.getAbsoluteX());
+		putShort(14, obj.getAbsoluteY());
+		
+		//a drag produces a stream of moves, only the last position of the same object is kept,
+		//the record still expects the object where the drag started
+		if ((lastMove >= 0) && (buffer.getInt(lastMove) == getInt(0)))
+		{
+			for (int i = 4; i < 12; i++)
+				record[i] = buffer.get(lastMove + i);
+			end = lastMove;
+			recordCount--;
+		}
+		int pos = end;
+		append(16);
+		lastMove = pos;
+	}
+	public synchronized void objectEdited(int stage, int index, MDirectObject previous, MDirectObject obj)
+	{
+		encodeHeader(opEdit, stage, index);
+		encodeExpected(previous.getAbsoluteX(), previous.getAbsoluteY(), previous);
+		append(encodeObject(12, obj));
+	}
+	
+	private int encodeObject(int pos, MDirectObject obj)
+	{
+		byte[] data = obj.getData();
+		putShort(pos, obj.getAbsoluteX());
+		putShort(pos + 2, obj.getAbsoluteY());
+		putShort(pos + 4, obj.getType());
+		putShort(pos + 6, obj.getAllocationAddress());
+		record[pos + 8] = (byte) obj.getContainer().ordinal();
+		record[pos + 9] = (byte) data.length;
+		System.arraycopy(data, 0, record, pos + 10, data.length);
+		return pos + 10 + data.length;
+	}
+	private void encodeHeader(byte op, int stage, int index)
+	{
+		record[0] = op;
+		record[1] = (byte) stage;
+		putShort(2, index);
+	}
+	private void encodeExpected(int x, int y, MDirectObject obj)
+	{
+		putShort(4, x);
+		putShort(6, y);
+		putShort(8, obj.getType());
+		putShort(10, obj.getAllocationAddress());
+	}
+	private void putShort(int pos, int value)
+	{
+		record[pos] = (byte) (value >> 8);
+		record[pos + 1] = (byte) value;
+	}
+	private int getInt(int pos)
+	{
+		return ((record[pos] & 0xFF) << 24) | ((record[pos + 1] & 0xFF) << 16) | ((record[pos + 2] & 0xFF) << 8) | (record[pos + 3] & 0xFF);
+	}
+	private void append(int len)
+	{
+		crc.reset();
+		crc.update(record, 0, len);
+		int value = (int) crc.getValue();
+		record[len] = (byte) (value >> 24);
+		record[len + 1] = (byte) (value >> 16);
+		record[len + 2] = (byte) (value >> 8);
+		record[len + 3] = (byte) value;
+		
+		try
+		{
+			ensureCapacity(end + len + 5);
+		}
+		catch (IOException e)
+		{
+			//journaling is best effort, the edit itself must never fail because of it
+			e.printStackTrace();
+			return;
+		}
+		//the op byte is written last so a record never appears before its payload
+		buffer.put(end + len + 4, (byte) 0);
+		for (int i = len + 3; i > 0; i--)
+			buffer.put(end + i, record[i]);
+		buffer.put(end, record[0]);
+		end += len + 4;
+		recordCount++;
+		lastMove = -1;
+		dirty = true;
+	}
+	private void ensureCapacity(int size) throws IOException
+	{
+		if (size <= buffer.capacity())
+			return;
+		int newSize = buffer.capacity();
+		while (newSize < size)
+			newSize *= 2;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+	}
+	
+	public synchronized int mark()
+	{
+		//records before the mark are not rewritten any more
+		lastMove = -1;
+		return end;
+	}
+	public synchronized void rebase(int romLength, long romCrc, int mark)
+	{
+		//records up to the mark are part of the rom now, the rest is moved to the front
+		int tail = end - mark;
+		for (int i = 0; i < tail; i++)
+			buffer.put(headerSize + i, buffer.get(mark + i));
+		for (int i = headerSize + tail; i < end; i++)
+			buffer.put(i, (byte) 0);
+		buffer.put(headerSize + tail, (byte) 0);
+		
+		buffer.putInt(0, magic);
+		buffer.putInt(4, formatVersion);
+		buffer.putInt(8, romLength);
+		buffer.putLong(12, romCrc);
+		end = headerSize + tail;
+		lastMove = -1;
+		scan();
+		dirty = true;
+		buffer.force();
+	}
+	public synchronized void reset(byte[] romContent)
+	{
+		rebase(romContent.length, romCrc(romContent), end);
+	}
+	
+	public void flush()
+	{
+		MappedByteBuffer buf;
+		synchronized (this)
+		{
+			if (!dirty)
+				return;
+			dirty = false;
+			buf = buffer;
+		}
+		buf.force();
+	}
+	public void close() throws IOException
+	{
+		flushTask.cancel(false);
+		flush();
+		channel.close();
+	}
+}
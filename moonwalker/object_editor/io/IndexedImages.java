@@ -0,0 +1,105 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+public class IndexedImages
+{
+	private final static int maxColors = 256;
+	
+	private IndexedImages()
+	{}
+	
+	public static boolean isIndexed(BufferedImage img)
+	{
+		return (img.getType() == BufferedImage.TYPE_BYTE_INDEXED)
+				&& (img.getRaster().getParent() == null)
+				&& (img.getRaster().getDataBuffer().getSize() == img.getWidth() * img.getHeight());
+	}
+	
+	public static BufferedImage toIndexed(BufferedImage img)
+	{
+		if (isIndexed(img))
+			return img;
+		
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int[] row = new int[width];
+		
+		int[] palette = new int[maxColors];
+		int colorCount = 0;
+		int[] tableKeys = new int[1024];
+		int[] tableValues = new int[1024];
+		Arrays.fill(tableValues, -1);
+		byte[] indices = new byte[width * height];
+		for (int y = 0; y < height; y++)
+		{
+			img.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++)
+			{
+				int c = row[x];
+				int slot = (c * 0x9E3779B1) >>> 22;
+				while ((tableValues[slot] >= 0) && (tableKeys[slot] != c))
+					slot = (slot + 1) & 1023;
+				
+				if (tableValues[slot] < 0)
+				{
+					//more colours than fit into a byte, keep the original
+					if (colorCount == maxColors)
+						return null;
+					tableKeys[slot] = c;
+					tableValues[slot] = colorCount;
+					palette[colorCount++] = c;
+				}
+				indices[y * width + x] = (byte) tableValues[slot];
+			}
+		}
+		
+		BufferedImage ret = create(width, height, Arrays.copyOf(palette, colorCount));
+		System.arraycopy(indices, 0, getIndices(ret), 0, indices.length);
+		return ret;
+	}
+	public static BufferedImage create(int width, int height, int[] palette)
+	{
+		IndexColorModel icm = new IndexColorModel(8, palette.length, palette, 0, true, -1, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, icm);
+	}
+	
+	public static byte[] getIndices(BufferedImage indexed)
+	{
+		return ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+	}
+	public static int[] getPalette(BufferedImage indexed)
+	{
+		IndexColorModel icm = (IndexColorModel) indexed.getColorModel();
+		int[] ret = new int[icm.getMapSize()];
+		icm.getRGBs(ret);
+		return ret;
+	}
+	public static BufferedImage withPalette(BufferedImage indexed, int[] palette)
+	{
+		//the index raster is shared, only the colour model is replaced
+		IndexColorModel icm = new IndexColorModel(8, palette.length, palette, 0, true, -1, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(icm, indexed.getRaster(), false, null);
+	}
+}
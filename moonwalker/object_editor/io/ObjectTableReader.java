@@ -0,0 +1,276 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import moonwalker.core.structures.MDirectObject;
+
+public abstract class ObjectTableReader implements Closeable
+{
+	private final static MDirectObject.Container[] containers = MDirectObject.Container.values();
+	
+	public static ObjectTableReader open(InputStream in) throws IOException
+	{
+		//the format is recognized by the binary magic, anything else is read as text
+		BufferedInputStream bin = new BufferedInputStream(in, 64 * 1024);
+		bin.mark(4);
+		byte[] magic = bin.readNBytes(4);
+		bin.reset();
+		if ((magic.length == 4) && (((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF)) == ObjectTableWriter.binaryMagic))
+			return new BinaryReader(bin);
+		return new TextReader(bin);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static int readAll(Path file, List<MDirectObject>[] stages) throws IOException
+	{
+		//nothing is replaced unless the whole file is valid, stages missing from it are left as they are
+		ArrayList<MDirectObject>[] read = new ArrayList[stages.length];
+		try (ObjectTableReader reader = open(Files.newInputStream(file)))
+		{
+			ArrayList<MDirectObject> objects = new ArrayList<>();
+			for (int stage; (stage = reader.nextStage(objects)) >= 0; objects = new ArrayList<>())
+			{
+				if (stage >= stages.length)
+					throw new IOException("Stage " + stage + " does not exist, the Rom has " + stages.length + " stages");
+				read[stage] = objects;
+			}
+		}
+		
+		int ret = 0;
+		for (int i = 0; i < stages.length; i++)
+		{
+			if (read[i] == null)
+				continue;
+			stages[i].clear();
+			stages[i].addAll(read[i]);
+			ret++;
+		}
+		return ret;
+	}
+	
+	public abstract int nextStage(List<MDirectObject> dst) throws IOException;
+	
+	private static MDirectObject createObject(int type, int x, int y, int address, int container, byte[] data) throws IOException
+	{
+		if ((container < 0) || (container >= containers.length))
+			throw new IOException("Invalid container: " + container);
+		MDirectObject ret = new MDirectObject(x, y, 0, (short) type, data, containers[container]);
+		ret.setAllocationAddress(address);
+		//the data length follows from the type, it is padded or cut the same way the edit dialog does
+		if (data.length != ret.getDataLength())
+			ret.setData(Arrays.copyOf(data, ret.getDataLength()));
+		return ret;
+	}
+	
+	private static class TextReader extends ObjectTableReader
+	{
+		private final BufferedReader in;
+		private String pending;
+		private int lineNumber;
+		
+		private TextReader(InputStream in)
+		{
+			this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 64 * 1024);
+		}
+		
+		@Override
+		public int nextStage(List<MDirectObject> dst) throws IOException
+		{
+			String line = (pending != null)?pending:readLine();
+			pending = null;
+			if (line == null)
+				return -1;
+			if (!line.startsWith("stage "))
+				throw error("expected a stage");
+			int stage = parseInt(line.substring(6).trim(), 10, 0xFE);
+			
+			//the stage ends where the next one starts
+			while ((line = readLine()) != null)
+			{
+				if (line.startsWith("stage "))
+				{
+					pending = line;
+					break;
+				}
+				dst.add(parseObject(line));
+			}
+			return stage;
+		}
+		private String readLine() throws IOException
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith(";"))
+					return line;
+			}
+			return null;
+		}
+		private MDirectObject parseObject(String line) throws IOException
+		{
+			String[] tokens = line.split("\\s+");
+			if (tokens.length != 6)
+				throw error("expected 6 columns, got " + tokens.length);
+			int container;
+			try
+			{
+				container = MDirectObject.Container.valueOf(tokens[4]).ordinal();
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw error("invalid container \"" + tokens[4] + "\"");
+			}
+			return createObject(parseInt(tokens[0], 16, 0xFFFF), parseInt(tokens[1], 10, 0xFFFF), parseInt(tokens[2], 10, 0xFFFF),
+					parseInt(tokens[3], 16, 0xFFFF), container, parseData(tokens[5]));
+		}
+		private int parseInt(String s, int radix, int max) throws IOException
+		{
+			try
+			{
+				int ret = Integer.parseInt(s, radix);
+				if ((ret >= 0) && (ret <= max))
+					return ret;
+			}
+			catch (NumberFormatException e)
+			{}
+			throw error("invalid number \"" + s + "\"");
+		}
+		private byte[] parseData(String s) throws IOException
+		{
+			if (s.equals("-"))
+				return new byte[0];
+			if (((s.length() & 1) != 0) || (s.length() > 2 * 0xFF))
+				throw error("invalid data \"" + s + "\"");
+			byte[] ret = new byte[s.length() / 2];
+			for (int i = 0; i < ret.length; i++)
+			{
+				int hi = Character.digit(s.charAt(2 * i), 16);
+				int lo = Character.digit(s.charAt(2 * i + 1), 16);
+				if ((hi < 0) || (lo < 0))
+					throw error("invalid data \"" + s + "\"");
+				ret[i] = (byte) ((hi << 4) | lo);
+			}
+			return ret;
+		}
+		private IOException error(String message)
+		{
+			return new IOException("Line " + lineNumber + ": " + message);
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+	
+	private static class BinaryReader extends ObjectTableReader
+	{
+		private final DataInputStream in;
+		private byte[] record;
+		private boolean finished;
+		
+		private BinaryReader(InputStream in) throws IOException
+		{
+			this.in = new DataInputStream(in);
+			record = new byte[4096];
+			this.in.readInt();
+			int version = this.in.readInt();
+			if (version != ObjectTableWriter.formatVersion)
+				throw new IOException("Unsupported object table version: " + version);
+		}
+		
+		@Override
+		public int nextStage(List<MDirectObject> dst) throws IOException
+		{
+			if (finished)
+				return -1;
+			int stage;
+			int count, len;
+			try
+			{
+				stage = in.readUnsignedByte();
+				if (stage == ObjectTableWriter.endOfStages)
+				{
+					finished = true;
+					return -1;
+				}
+				count = in.readUnsignedShort();
+				len = in.readInt();
+				if ((len < 0) || (len > count * (10 + 0xFF)))
+					throw new IOException("Invalid length of stage " + stage + ": " + len);
+				if (record.length < len)
+					record = new byte[len];
+				in.readFully(record, 0, len);
+			}
+			catch (EOFException e)
+			{
+				throw new IOException("Truncated object table", e);
+			}
+			
+			int pos = 0;
+			for (int i = 0; i < count; i++)
+			{
+				if (pos + 10 > len)
+					throw new IOException("Truncated object in stage " + stage);
+				int type = getShort(pos);
+				int x = getShort(pos + 2);
+				int y = getShort(pos + 4);
+				int address = getShort(pos + 6);
+				int container = record[pos + 8];
+				int dataLength = record[pos + 9] & 0xFF;
+				pos += 10;
+				if (pos + dataLength > len)
+					throw new IOException("Truncated object in stage " + stage);
+				byte[] data = new byte[dataLength];
+				System.arraycopy(record, pos, data, 0, dataLength);
+				pos += dataLength;
+				dst.add(createObject(type, x, y, address, container, data));
+			}
+			if (pos != len)
+				throw new IOException("Invalid length of stage " + stage + ": " + len);
+			return stage;
+		}
+		private int getShort(int pos)
+		{
+			return ((record[pos] & 0xFF) << 8) | (record[pos + 1] & 0xFF);
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
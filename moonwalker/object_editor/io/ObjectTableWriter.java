@@ -0,0 +1,181 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import moonwalker.core.structures.MDirectObject;
+
+public abstract class ObjectTableWriter implements Closeable
+{
+	final static int binaryMagic = 0x4D574F54;
+	final static int formatVersion = 1;
+	private final static String textHeader = "; Moonwalker object tables ";
+	final static int endOfStages = 0xFF;
+	
+	private final static char[] hexDigits = "0123456789ABCDEF".toCharArray();
+	
+	public static ObjectTableWriter text(OutputStream out)
+	{
+		return new TextWriter(out);
+	}
+	public static ObjectTableWriter binary(OutputStream out)
+	{
+		return new BinaryWriter(out);
+	}
+	
+	public static void writeAll(Path file, List<MDirectObject>[] stages, boolean binary) throws IOException
+	{
+		try (OutputStream out = Files.newOutputStream(file);
+				ObjectTableWriter writer = binary?binary(out):text(out))
+		{
+			for (int i = 0; i < stages.length; i++)
+				writer.writeStage(i, stages[i]);
+		}
+	}
+	
+	public abstract void writeStage(int stage, List<MDirectObject> objects) throws IOException;
+	
+	private static class TextWriter extends ObjectTableWriter
+	{
+		private final BufferedWriter out;
+		private final StringBuilder line;
+		private boolean started;
+		
+		private TextWriter(OutputStream out)
+		{
+			this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), 64 * 1024);
+			line = new StringBuilder(64);
+		}
+		
+		@Override
+		public void writeStage(int stage, List<MDirectObject> objects) throws IOException
+		{
+			if (!started)
+			{
+				out.write(textHeader + formatVersion + "\n");
+				out.write("; type x y address container data\n");
+				started = true;
+			}
+			out.write("stage " + stage + "\n");
+			
+			//one object per line, so a diff shows exactly the objects that changed
+			for (MDirectObject obj: objects)
+			{
+				line.setLength(0);
+				appendHex(line, 0xFFFF & obj.getType());
+				line.append(' ').append(obj.getAbsoluteX()).append(' ').append(obj.getAbsoluteY()).append(' ');
+				appendHex(line, obj.getAllocationAddress());
+				line.append(' ').append(obj.getContainer().name()).append(' ');
+				byte[] data = obj.getData();
+				if (data.length == 0)
+					line.append('-');
+				for (byte b: data)
+					line.append(hexDigits[(b >> 4) & 0xF]).append(hexDigits[b & 0xF]);
+				line.append('\n');
+				out.append(line);
+			}
+		}
+		private static void appendHex(StringBuilder sb, int value)
+		{
+			for (int shift = 12; shift >= 0; shift -= 4)
+				sb.append(hexDigits[(value >> shift) & 0xF]);
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+	
+	private static class BinaryWriter extends ObjectTableWriter
+	{
+		private final DataOutputStream out;
+		private byte[] record;
+		private boolean started;
+		
+		private BinaryWriter(OutputStream out)
+		{
+			this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+			record = new byte[4096];
+		}
+		
+		@Override
+		public void writeStage(int stage, List<MDirectObject> objects) throws IOException
+		{
+			if ((stage < 0) || (stage >= endOfStages))
+				throw new IllegalArgumentException("Invalid stage index: " + stage);
+			if (!started)
+			{
+				out.writeInt(binaryMagic);
+				out.writeInt(formatVersion);
+				started = true;
+			}
+			
+			//the stage is encoded first so its length can precede it
+			int len = 0;
+			for (MDirectObject obj: objects)
+			{
+				byte[] data = obj.getData();
+				if (record.length < len + 10 + data.length)
+					record = Arrays.copyOf(record, Math.max(record.length * 2, len + 10 + data.length));
+				len = putShort(len, obj.getType());
+				len = putShort(len, obj.getAbsoluteX());
+				len = putShort(len, obj.getAbsoluteY());
+				len = putShort(len, obj.getAllocationAddress());
+				record[len++] = (byte) obj.getContainer().ordinal();
+				record[len++] = (byte) data.length;
+				System.arraycopy(data, 0, record, len, data.length);
+				len += data.length;
+			}
+			out.writeByte(stage);
+			out.writeShort(objects.size());
+			out.writeInt(len);
+			out.write(record, 0, len);
+		}
+		private int putShort(int pos, int value)
+		{
+			record[pos] = (byte) (value >> 8);
+			record[pos + 1] = (byte) value;
+			return pos + 2;
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			if (!started)
+			{
+				out.writeInt(binaryMagic);
+				out.writeInt(formatVersion);
+			}
+			out.writeByte(endOfStages);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,417 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import moonwalker.core.utils.MoonwalkerIO;
+
+public class RomBuffer
+{
+	private final static int pageShift = 12;
+	private final static int pageSize = 1 << pageShift;
+	
+	private final Path source;
+	private final byte[] content;
+	private final int length;
+	private final BitSet unsaved;
+	private final RomChecksum checksum;
+	private Path savedTarget;
+	private FileTime savedTime;
+	private int savedChecksum;
+	private long modificationCount;
+	private final BitSet staleCrcs;
+	private final HashMap<Integer, int[]> crcShifts;
+	private int[] crcTree, crcTreeLength;
+	private int crcLeafCount;
+	
+	private RomBuffer(Path path, byte[] romContent, FileTime time)
+	{
+		source = path;
+		content = romContent;
+		length = romContent.length;
+		unsaved = new BitSet();
+		staleCrcs = new BitSet();
+		crcShifts = new HashMap<>();
+		checksum = RomChecksum.of(ByteBuffer.wrap(romContent));
+		savedTarget = path;
+		savedTime = time;
+		savedChecksum = headerChecksum();
+	}
+	
+	public static RomBuffer open(Path path) throws IOException
+	{
+		//the Rom is held as one array instead of mapped, a mapping would lock the file on windows
+		//and a tool rebuilding the Rom in place would change the bytes under the editor;
+		//the time is taken first, so a rewrite during the read makes the next save a full one
+		FileTime time = Files.getLastModifiedTime(path);
+		return new RomBuffer(path, Files.readAllBytes(path), time);
+	}
+	
+	public int length()
+	{
+		return length;
+	}
+	public Path getSource()
+	{
+		return source;
+	}
+	
+	public byte get(int pos)
+	{
+		return content[pos];
+	}
+	public void read(int pos, byte[] dst, int off, int len)
+	{
+		checkRange(pos, len);
+		System.arraycopy(content, pos, dst, off, len);
+	}
+	public byte[] getContent()
+	{
+		//the live content, shared so the editor does not need a copy of its own; callers must not write to it
+		return content;
+	}
+	public void write(int pos, byte[] src, int off, int len)
+	{
+		checkRange(pos, len);
+		unsaved.set(pos, pos + len);
+		if (len > 0)
+			staleCrcs.set(pos >>> pageShift, ((pos + len - 1) >>> pageShift) + 1);
+		modificationCount++;
+		for (int i = 0; i < len; i++)
+			checksum.update(pos + i, content[pos + i], src[off + i]);
+		System.arraycopy(src, off, content, pos, len);
+	}
+	
+	public byte[] toByteArray()
+	{
+		byte[] ret = new byte[length];
+		copyTo(ret);
+		return ret;
+	}
+	public void copyTo(byte[] dst)
+	{
+		if (dst.length != length)
+			throw new IllegalArgumentException("Array length " + dst.length + " does not match ROM length " + length);
+		read(0, dst, 0, length);
+	}
+	
+	public int commitFrom(byte[] modified)
+	{
+		if (modified.length != length)
+			throw new IllegalArgumentException("Array length " + modified.length + " does not match ROM length " + length);
+		
+		int changedPages = 0;
+		for (int pageIndex = 0, pageCount = (length + pageSize - 1) >>> pageShift; pageIndex < pageCount; pageIndex++)
+		{
+			int start = pageIndex << pageShift;
+			int n = Math.min(pageSize, length - start);
+			if ((Arrays.mismatch(content, start, start + n, modified, start, start + n) >= 0) && markChanges(start, modified, n))
+			{
+				System.arraycopy(modified, start, content, start, n);
+				changedPages++;
+			}
+		}
+		if (changedPages > 0)
+			modificationCount++;
+		return changedPages;
+	}
+	
+	public long crc32()
+	{
+		//the crc is kept in a tree over the pages, only the changed pages and their parents are computed again
+		if (crcTree == null)
+			buildCrcTree();
+		for (int pageIndex = staleCrcs.nextSetBit(0); pageIndex >= 0; pageIndex = staleCrcs.nextSetBit(pageIndex + 1))
+		{
+			int node = crcLeafCount + pageIndex;
+			crcTree[node] = pageCrc(pageIndex);
+			for (node >>>= 1; node > 0; node >>>= 1)
+				crcTree[node] = combineCrc(node);
+		}
+		staleCrcs.clear();
+		return crcTree[1] & 0xFFFFFFFFL;
+	}
+	private void buildCrcTree()
+	{
+		int pageCount = (length + pageSize - 1) >>> pageShift;
+		crcLeafCount = Integer.highestOneBit(Math.max(1, pageCount - 1)) << 1;
+		crcTree = new int[2 * crcLeafCount];
+		crcTreeLength = new int[2 * crcLeafCount];
+		for (int pageIndex = 0; pageIndex < pageCount; pageIndex++)
+		{
+			crcTree[crcLeafCount + pageIndex] = pageCrc(pageIndex);
+			crcTreeLength[crcLeafCount + pageIndex] = Math.min(pageSize, length - (pageIndex << pageShift));
+		}
+		for (int node = crcLeafCount - 1; node > 0; node--)
+		{
+			crcTreeLength[node] = crcTreeLength[2 * node] + crcTreeLength[2 * node + 1];
+			crcTree[node] = combineCrc(node);
+		}
+		staleCrcs.clear();
+	}
+	private int pageCrc(int pageIndex)
+	{
+		int pos = pageIndex << pageShift;
+		CRC32 ret = new CRC32();
+		ret.update(content, pos, Math.min(pageSize, length - pos));
+		return (int) ret.getValue();
+	}
+	private int combineCrc(int node)
+	{
+		//the crc of a concatenation is the crc of the left part advanced over as many zero bytes
+		//as the right part has, xored with the crc of the right part (as in zlib's crc32_combine)
+		int rightLength = crcTreeLength[2 * node + 1];
+		int[] shift = crcShifts.get(rightLength);
+		if (shift == null)
+		{
+			shift = zeroBytesOperator(rightLength);
+			crcShifts.put(rightLength, shift);
+		}
+		return multiply(shift, crcTree[2 * node]) ^ crcTree[2 * node + 1];
+	}
+	private static int[] zeroBytesOperator(int len)
+	{
+		//operator for a single zero bit, squared three times gives the one for a zero byte
+		int[] power = new int[32];
+		power[0] = 0xEDB88320;
+		for (int n = 1; n < 32; n++)
+			power[n] = 1 << (n - 1);
+		for (int i = 0; i < 3; i++)
+			power = compose(power, power);
+		
+		int[] ret = new int[32];
+		for (int n = 0; n < 32; n++)
+			ret[n] = 1 << n;
+		for (; len != 0; len >>>= 1)
+		{
+			if ((len & 1) != 0)
+				ret = compose(power, ret);
+			power = compose(power, power);
+		}
+		return ret;
+	}
+	private static int[] compose(int[] a, int[] b)
+	{
+		int[] ret = new int[32];
+		for (int n = 0; n < 32; n++)
+			ret[n] = multiply(a, b[n]);
+		return ret;
+	}
+	private static int multiply(int[] matrix, int vector)
+	{
+		int ret = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1)
+		{
+			if ((vector & 1) != 0)
+				ret ^= matrix[i];
+		}
+		return ret;
+	}
+	public int getChecksum()
+	{
+		return checksum.get();
+	}
+	public int fixChecksum(boolean verify)
+	{
+		//the tracked sum follows every byte change, so only the two checksum bytes are written
+		byte[] value = new byte[2];
+		if (verify)
+		{
+			byte[] full = toByteArray();
+			MoonwalkerIO.fixChecksum(full);
+			System.arraycopy(full, RomChecksum.checksumOffset, value, 0, 2);
+			if (((value[0] & 0xFF) << 8 | (value[1] & 0xFF)) != checksum.get())
+				throw new IllegalStateException(String.format("Tracked checksum %04X does not match recomputed checksum %02X%02X",
+						checksum.get(), value[0] & 0xFF, value[1] & 0xFF));
+		}
+		value[0] = (byte) (checksum.get() >> 8);
+		value[1] = (byte) checksum.get();
+		
+		byte[] current = new byte[2];
+		read(RomChecksum.checksumOffset, current, 0, 2);
+		if (!Arrays.equals(current, value))
+			write(RomChecksum.checksumOffset, value, 0, 2);
+		return checksum.get();
+	}
+	
+	public boolean isSavedTo(Path target) throws IOException
+	{
+		//the target still holds the last written content unless something else touched it,
+		//the checksum word in the header catches a rebuild that kept the size and time
+		if (!Files.exists(target) || !Files.isSameFile(target, savedTarget)
+				|| (Files.size(target) != length) || !Files.getLastModifiedTime(target).equals(savedTime))
+			return false;
+		if (length < RomChecksum.checksumOffset + 2)
+			return true;
+		ByteBuffer word = ByteBuffer.allocate(2);
+		try (FileChannel fc = FileChannel.open(target, StandardOpenOption.READ))
+		{
+			while (word.hasRemaining())
+			{
+				if (fc.read(word, RomChecksum.checksumOffset + word.position()) < 0)
+					return false;
+			}
+		}
+		return (word.getShort(0) & 0xFFFF) == savedChecksum;
+	}
+	public boolean hasUnsavedChanges()
+	{
+		return !unsaved.isEmpty();
+	}
+	
+	public int writeTo(Path target) throws IOException
+	{
+		return writeTo(target, true);
+	}
+	public int writeTo(Path target, boolean incremental) throws IOException
+	{
+		if (incremental && isSavedTo(target))
+			return writeChanges(target);
+		
+		Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+		try
+		{
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				ByteBuffer buf = ByteBuffer.wrap(content);
+				while (buf.hasRemaining())
+					fc.write(buf);
+				fc.force(false);
+			}
+			replace(tmp, target);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+		markSaved(target);
+		return length;
+	}
+	private int writeChanges(Path target) throws IOException
+	{
+		if (unsaved.isEmpty())
+			return 0;
+		
+		int written = 0;
+		Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+		try
+		{
+			Files.copy(target, tmp, StandardCopyOption.REPLACE_EXISTING);
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE))
+			{
+				for (int start = unsaved.nextSetBit(0), end; start >= 0; start = unsaved.nextSetBit(end))
+				{
+					end = Math.min(unsaved.nextClearBit(start), length);
+					ByteBuffer buf = ByteBuffer.wrap(content, start, end - start);
+					for (long p = start; buf.hasRemaining();)
+						p += fc.write(buf, p);
+					written += end - start;
+				}
+				fc.force(false);
+			}
+			replace(tmp, target);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+		markSaved(target);
+		return written;
+	}
+	private void markSaved(Path target) throws IOException
+	{
+		savedTarget = target;
+		savedTime = Files.getLastModifiedTime(target);
+		savedChecksum = headerChecksum();
+		unsaved.clear();
+	}
+	private int headerChecksum()
+	{
+		if (length < RomChecksum.checksumOffset + 2)
+			return -1;
+		return (get(RomChecksum.checksumOffset) & 0xFF) << 8 | (get(RomChecksum.checksumOffset + 1) & 0xFF);
+	}
+	private static void replace(Path tmp, Path target) throws IOException
+	{
+		try
+		{
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{}
+		try
+		{
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (FileSystemException e)
+		{
+			//windows refuses to replace a file another program holds open, so its content is overwritten instead
+			try (FileChannel src = FileChannel.open(tmp, StandardOpenOption.READ);
+					FileChannel dst = FileChannel.open(target, StandardOpenOption.WRITE))
+			{
+				long size = src.size();
+				for (long pos = 0; pos < size;)
+					pos += dst.transferFrom(src, pos, size - pos);
+				dst.truncate(size);
+				dst.force(false);
+			}
+		}
+	}
+	
+	public long getModificationCount()
+	{
+		return modificationCount;
+	}
+	
+	private boolean markChanges(int start, byte[] arr, int n)
+	{
+		boolean changed = false;
+		for (int i = 0; i < n; i++)
+		{
+			byte b = content[start + i];
+			if (b != arr[start + i])
+			{
+				checksum.update(start + i, b, arr[start + i]);
+				unsaved.set(start + i);
+				changed = true;
+			}
+		}
+		if (changed)
+			staleCrcs.set(start >>> pageShift);
+		return changed;
+	}
+	private void checkRange(int pos, int len)
+	{
+		if ((pos < 0) || (len < 0) || (pos > length - len))
+			throw new IndexOutOfBoundsException("Range [" + pos + ", " + (pos + len) + ") outside of ROM of length " + length);
+	}
+}
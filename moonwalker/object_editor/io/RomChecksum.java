@@ -0,0 +1,73 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.nio.ByteBuffer;
+
+public class RomChecksum
+{
+	public final static int checksumOffset = 0x18E;
+	private final static int dataStart = 0x200;
+	
+	private int sum;
+	
+	public RomChecksum(int sum)
+	{
+		this.sum = sum;
+	}
+	
+	public static RomChecksum of(ByteBuffer rom)
+	{
+		return new RomChecksum(compute(rom));
+	}
+	public static int compute(byte[] rom)
+	{
+		return compute(ByteBuffer.wrap(rom));
+	}
+	public static int compute(ByteBuffer rom)
+	{
+		//sum of the big endian words following the header, an odd trailing byte counts as a high byte
+		int length = rom.limit();
+		int sum = 0;
+		int pos = dataStart;
+		for (; pos + 1 < length; pos += 2)
+			sum += rom.getShort(pos) & 0xFFFF;
+		if (pos < length)
+			sum += (rom.get(pos) & 0xFF) << 8;
+		return sum & 0xFFFF;
+	}
+	
+	public void update(int pos, byte oldValue, byte newValue)
+	{
+		if (pos < dataStart)
+			return;
+		int delta = (newValue & 0xFF) - (oldValue & 0xFF);
+		sum += ((pos & 1) == 0)?(delta << 8):delta;
+	}
+	
+	public int get()
+	{
+		return sum & 0xFFFF;
+	}
+	public void store(byte[] rom)
+	{
+		int value = get();
+		rom[checksumOffset] = (byte) (value >> 8);
+		rom[checksumOffset + 1] = (byte) value;
+	}
+}
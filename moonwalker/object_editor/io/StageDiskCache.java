@@ -0,0 +1,251 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.object_editor.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Supplier;
+import moonwalker.core.MoonwalkerCore;
+import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.utils.MoonwalkerIO;
+import moonwalker.core.utils.MoonwalkerMetadata;
+
+public class StageDiskCache
+{
+	private final static int magic = 0x4D575343;
+	private final static int formatVersion = 1;
+	private final static String extension = ".mwsc";
+	
+	private final Path directory;
+	private long maxSize;
+	
+	public StageDiskCache(Path directory, long maxBytes) throws IOException
+	{
+		this.directory = directory;
+		maxSize = maxBytes;
+		Files.createDirectories(directory);
+	}
+	
+	public static Path getDefaultDirectory()
+	{
+		return Path.of(System.getProperty("user.home"), ".moonwalker_object_editor", "stage_cache");
+	}
+	
+	public static String createKey(byte[] romContent, MoonwalkerMetadata meta)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(normalizeObjects(romContent, meta));
+			md.update(meta.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			md.update(String.valueOf(MoonwalkerCore.VERSION).getBytes(StandardCharsets.UTF_8));
+			md.update((byte) formatVersion);
+			
+			StringBuilder sb = new StringBuilder();
+			for (byte b: md.digest())
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	private static byte[] normalizeObjects(byte[] romContent, MoonwalkerMetadata meta)
+	{
+		//the stage images do not depend on the objects, so every object table is replaced by an empty one
+		//an object edit then keeps the key of the stages and their cached images
+		try
+		{
+			int stageCount = MoonwalkerIO.loadMainObjectArray(romContent, meta).length;
+			byte[] ret = Arrays.copyOf(romContent, romContent.length);
+			MoonwalkerIO.saveMainObjectArray(ret, new MDirectObject[stageCount][0], meta);
+			MoonwalkerIO.fixChecksum(ret);
+			return ret;
+		}
+		catch (Exception e)
+		{
+			//a rom the object tables cannot be read from is keyed by its whole content
+			return romContent;
+		}
+	}
+	
+	public BufferedImage getOrDecode(String key, int stage, Supplier<BufferedImage> decoder)
+	{
+		Path file = directory.resolve(key + "-" + stage + extension);
+		try
+		{
+			if (Files.exists(file))
+			{
+				BufferedImage ret = read(file);
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+				return ret;
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			try
+			{
+				Files.deleteIfExists(file);
+			}
+			catch (IOException ex)
+			{}
+		}
+		
+		BufferedImage img = decoder.get();
+		if (img != null)
+		{
+			try
+			{
+				if (write(file, img))
+					evict();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return img;
+	}
+	
+	private static BufferedImage read(Path file) throws IOException
+	{
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if ((buf.getInt() != magic) || (buf.getInt() != formatVersion))
+				throw new IOException("Invalid stage cache file: " + file);
+			
+			int width = buf.getInt();
+			int height = buf.getInt();
+			int colorCount = buf.getInt();
+			if ((width <= 0) || (height <= 0) || (colorCount <= 0) || (colorCount > 256)
+					|| (buf.remaining() != colorCount * 4L + (long) width * height))
+				throw new IOException("Corrupt stage cache file: " + file);
+			
+			int[] palette = new int[colorCount];
+			buf.asIntBuffer().get(palette);
+			buf.position(buf.position() + colorCount * 4);
+			
+			BufferedImage ret = IndexedImages.create(width, height, palette);
+			buf.get(IndexedImages.getIndices(ret));
+			return ret;
+		}
+	}
+	private boolean write(Path file, BufferedImage img) throws IOException
+	{
+		//images with more colours than fit into a byte are not cached
+		BufferedImage indexed = IndexedImages.toIndexed(img);
+		if (indexed == null)
+			return false;
+		
+		int width = indexed.getWidth();
+		int height = indexed.getHeight();
+		int[] palette = IndexedImages.getPalette(indexed);
+		int colorCount = palette.length;
+		byte[] indices = IndexedImages.getIndices(indexed);
+		
+		ByteBuffer header = ByteBuffer.allocate(20 + colorCount * 4);
+		header.putInt(magic).putInt(formatVersion).putInt(width).putInt(height).putInt(colorCount);
+		for (int i = 0; i < colorCount; i++)
+			header.putInt(palette[i]);
+		header.flip();
+		
+		Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try
+		{
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE))
+			{
+				ByteBuffer body = ByteBuffer.wrap(indices);
+				while (header.hasRemaining())
+					fc.write(header);
+				while (body.hasRemaining())
+					fc.write(body);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+		return true;
+	}
+	
+	private synchronized void evict() throws IOException
+	{
+		ArrayList<Path> files = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "*" + extension))
+		{
+			for (Path p: ds)
+			{
+				files.add(p);
+				total += Files.size(p);
+			}
+		}
+		if (total <= maxSize)
+			return;
+		
+		HashMap<Path, FileTime> times = new HashMap<>();
+		for (Path p: files)
+			times.put(p, Files.getLastModifiedTime(p));
+		files.sort((a, b) -> times.get(a).compareTo(times.get(b)));
+		
+		for (Path p: files)
+		{
+			if (total <= maxSize)
+				break;
+			try
+			{
+				long size = Files.size(p);
+				Files.deleteIfExists(p);
+				total -= size;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+	public void setMaxSize(long bytes) throws IOException
+	{
+		maxSize = bytes;
+		evict();
+	}
+}